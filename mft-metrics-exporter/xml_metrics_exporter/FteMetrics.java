@@ -0,0 +1,324 @@
+/*
+* (c) Copyright IBM Corporation 2025
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package xml_metrics_exporter;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns status messages into a fixed set of metrics whose labels are agent,
+ * monitor and status names only, so the number of series stays bounded however
+ * many transfers are run:
+ *
+ * mft_transfers_started_total, mft_transfers_completed_total and
+ * mft_transfers_failed_total count transfers per source and destination agent,
+ * mft_transfer_duration_seconds and mft_transfer_bytes are histograms of the
+ * completed transfers, and mft_agent_status and mft_monitor_status are 1 for the
+ * current status of each agent and monitor.
+ *
+ * Transfer IDs are not labels. They can be attached to the completed transfer
+ * metrics as exemplars, written to the log, or both.
+ */
+public class FteMetrics {
+	// Where the IDs of completed transfers are reported
+	public enum IdentifierChannel {
+		NONE, EXEMPLAR, LOG, BOTH;
+
+		boolean exemplars() {
+			return this == EXEMPLAR || this == BOTH;
+		}
+
+		boolean log() {
+			return this == LOG || this == BOTH;
+		}
+	}
+
+	private static final String RESULT_SUCCESS = "success";
+	private static final String RESULT_PARTIAL = "partial_success";
+	private static final String RESULT_CANCELLED = "cancelled";
+	private static final String RESULT_FAILURE = "failure";
+
+	private final Counter messagesTotal;
+	private final Counter transfersStarted;
+	private final Counter transfersCompleted;
+	private final Counter transfersFailed;
+	private final Histogram transferDuration;
+	private final Histogram transferBytes;
+	private final Gauge agentStatus;
+	private final Gauge monitorStatus;
+	private final Counter monitorEvents;
+
+	// Current status of each agent and monitor, to clear the series of the previous one
+	private final Map<String, String> agentStatuses = new ConcurrentHashMap<>();
+	private final Map<String, String> monitorStatuses = new ConcurrentHashMap<>();
+
+	private volatile IdentifierChannel identifierChannel = IdentifierChannel.NONE;
+
+	public FteMetrics(CollectorRegistry registry) {
+		messagesTotal = Counter.build()
+				.name("mft_status_messages_total")
+				.help("Status messages received, by type of message")
+				.labelNames("list_type")
+				.register(registry);
+		transfersStarted = Counter.build()
+				.name("mft_transfers_started_total")
+				.help("Transfers started")
+				.labelNames("source_agent", "destination_agent")
+				.register(registry);
+		transfersCompleted = Counter.build()
+				.name("mft_transfers_completed_total")
+				.help("Transfers completed, by result")
+				.labelNames("source_agent", "destination_agent", "result")
+				.withExemplars()
+				.register(registry);
+		transfersFailed = Counter.build()
+				.name("mft_transfers_failed_total")
+				.help("Transfers completed with a failure")
+				.labelNames("source_agent", "destination_agent")
+				.withExemplars()
+				.register(registry);
+		transferDuration = Histogram.build()
+				.name("mft_transfer_duration_seconds")
+				.help("Time from the start to the completion of a transfer")
+				.labelNames("source_agent", "destination_agent")
+				.buckets(0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 1800, 3600, 14400)
+				.withExemplars()
+				.register(registry);
+		transferBytes = Histogram.build()
+				.name("mft_transfer_bytes")
+				.help("Bytes sent by a completed transfer")
+				.labelNames("source_agent", "destination_agent")
+				.exponentialBuckets(1024, 4, 12)
+				.withExemplars()
+				.register(registry);
+		agentStatus = Gauge.build()
+				.name("mft_agent_status")
+				.help("1 for the current status of the agent")
+				.labelNames("agent", "status")
+				.register(registry);
+		monitorStatus = Gauge.build()
+				.name("mft_monitor_status")
+				.help("1 for the current status of the resource monitor")
+				.labelNames("agent", "monitor", "status")
+				.register(registry);
+		monitorEvents = Counter.build()
+				.name("mft_monitor_events_total")
+				.help("Resource monitor log events, by action")
+				.labelNames("agent", "monitor", "action")
+				.register(registry);
+	}
+
+	public void setIdentifierChannel(IdentifierChannel identifierChannel) {
+		this.identifierChannel = identifierChannel;
+	}
+
+	public void record(FteStatus status) {
+		String listType = status.getListType();
+		messagesTotal.labels(listType).inc();
+		switch (listType) {
+			case "TransferLog":
+				recordTransfer(status);
+				break;
+			case "properties":
+				recordAgent(status);
+				break;
+			case "monitorList":
+			case "MonitorList":
+				recordMonitor(status);
+				break;
+			case "MonitorLog":
+				recordMonitorEvent(status);
+				break;
+			default:
+				// Transfer progress and other messages only add to the message count
+				break;
+		}
+	}
+
+	private void recordTransfer(FteStatus status) {
+		String action = status.get("action");
+		if (action == null) {
+			return;
+		}
+		String source = orUnknown(status.get("sourceagent_agent"));
+		String destination = orUnknown(status.get("destinationagent_agent"));
+		switch (action) {
+			case "started":
+				transfersStarted.labels(source, destination).inc();
+				break;
+			case "completed":
+			case "cancelled":
+			case "malformed":
+				recordCompleted(status, action, source, destination);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void recordCompleted(FteStatus status, String action, String source, String destination) {
+		String result = result(action, status.get("status_resultcode"));
+		String id = status.get("id");
+		boolean exemplars = identifierChannel.exemplars() && id != null;
+
+		if (exemplars) {
+			transfersCompleted.labels(source, destination, result).incWithExemplar("transfer_id", id);
+		} else {
+			transfersCompleted.labels(source, destination, result).inc();
+		}
+		if (result.equals(RESULT_FAILURE)) {
+			if (exemplars) {
+				transfersFailed.labels(source, destination).incWithExemplar("transfer_id", id);
+			} else {
+				transfersFailed.labels(source, destination).inc();
+			}
+		}
+
+		double seconds = Double.NaN;
+		Instant end = parseTime(status.get("action_time"));
+		Instant start = parseTime(status.get("statistics_actualstarttime"));
+		if (start == null) {
+			start = parseTime(status.get("transferset_starttime"));
+		}
+		if (start != null && end != null && !end.isBefore(start)) {
+			seconds = Duration.between(start, end).toMillis() / 1000.0;
+			if (exemplars) {
+				transferDuration.labels(source, destination).observeWithExemplar(seconds, "transfer_id", id);
+			} else {
+				transferDuration.labels(source, destination).observe(seconds);
+			}
+		}
+
+		long bytes = parseLong(status.get("transferset_bytessent"));
+		if (bytes >= 0) {
+			if (exemplars) {
+				transferBytes.labels(source, destination).observeWithExemplar(bytes, "transfer_id", id);
+			} else {
+				transferBytes.labels(source, destination).observe(bytes);
+			}
+		}
+
+		if (identifierChannel.log()) {
+			System.out.println("Transfer " + id + " " + source + " -> " + destination + " " + result
+					+ (bytes >= 0 ? " bytes=" + bytes : "")
+					+ (Double.isNaN(seconds) ? "" : " seconds=" + seconds));
+		}
+	}
+
+	// Result of a completed transfer from its result code, 40 is partially successful and 41 cancelled
+	private static String result(String action, String resultCode) {
+		if (action.equals("cancelled")) {
+			return RESULT_CANCELLED;
+		}
+		if (action.equals("malformed") || resultCode == null) {
+			return RESULT_FAILURE;
+		}
+		switch (resultCode.trim()) {
+			case "0":
+				return RESULT_SUCCESS;
+			case "40":
+				return RESULT_PARTIAL;
+			case "41":
+				return RESULT_CANCELLED;
+			default:
+				return RESULT_FAILURE;
+		}
+	}
+
+	private void recordAgent(FteStatus status) {
+		String agent = status.get("agentname");
+		String state = status.get("agentstatus");
+		if (agent == null || state == null) {
+			return;
+		}
+		String previous = agentStatuses.put(agent, state);
+		if (previous != null && !previous.equals(state)) {
+			agentStatus.remove(agent, previous);
+		}
+		agentStatus.labels(agent, state).set(1);
+	}
+
+	private void recordMonitor(FteStatus status) {
+		String agent = status.get("agent");
+		String monitor = monitorName(status);
+		String state = status.get("status_state");
+		if (agent == null || monitor == null || state == null) {
+			return;
+		}
+		String previous = monitorStatuses.put(agent + '\0' + monitor, state);
+		if (previous != null && !previous.equals(state)) {
+			monitorStatus.remove(agent, monitor, previous);
+		}
+		monitorStatus.labels(agent, monitor, state).set(1);
+	}
+
+	private void recordMonitorEvent(FteStatus status) {
+		String action = status.get("action");
+		if (action == null) {
+			return;
+		}
+		String agent = orUnknown(status.get("monitoragent_agent"));
+		String monitor = orUnknown(monitorName(status));
+		monitorEvents.labels(agent, monitor, action).inc();
+	}
+
+	private static String monitorName(FteStatus status) {
+		String name = status.get("monitorname");
+		if (name == null) {
+			name = status.get("monitor");
+		}
+		if (name == null) {
+			name = status.get("name");
+		}
+		return name;
+	}
+
+	private static String orUnknown(String value) {
+		return value == null || value.isEmpty() ? "unknown" : value;
+	}
+
+	private static Instant parseTime(String time) {
+		if (time == null) {
+			return null;
+		}
+		try {
+			return OffsetDateTime.parse(time.trim()).toInstant();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+* (c) Copyright IBM Corporation 2025
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package xml_metrics_exporter;
+
+import java.util.Map;
+
+// The fields of one status message
+public class FteStatus {
+	private final String listType;
+	private final Map<String, String> fields;
+
+	public FteStatus(String listType, Map<String, String> fields) {
+		this.listType = listType;
+		this.fields = fields;
+	}
+
+	// Type of the status message, the name of its schema or of its root element
+	public String getListType() {
+		return listType;
+	}
+
+	// Field names and values, in the order they appear in the message
+	public Map<String, String> getFields() {
+		return fields;
+	}
+
+	// Value of a field, or null if the message does not have it
+	public String get(String field) {
+		return fields.get(field);
+	}
+
+	@Override
+	public String toString() {
+		return listType + fields;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+* (c) Copyright IBM Corporation 2025
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package xml_metrics_exporter;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an FTE status message published on SYSTEM.FTE straight into its fields,
+ * in one pass over the XML and without building a document.
+ *
+ * Attributes and the text of elements become fields. Nested elements are named
+ * by their path from the root element, for example sourceAgent_agent, and only
+ * the first of repeated elements is used. Entries of an agent's properties are
+ * named by their key without the com.ibm.wmqfte. prefix. Namespace declarations,
+ * xsi: attributes and XML documents embedded in the text, such as taskXML, are
+ * left out.
+ */
+public class FteStatusParser {
+	private static final String PROPERTY_PREFIX = "com.ibm.wmqfte.";
+	private static final String SCHEMA_SUFFIX = ".xsd";
+	private static final Pattern INVALID_LABEL_CHARS = Pattern.compile("[^a-zA-Z0-9_]");
+
+	private static final XMLInputFactory factory = createFactory();
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		f.setProperty(XMLInputFactory.IS_COALESCING, true);
+		// Agent status messages declare the properties DTD, which must not be fetched
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return f;
+	}
+
+	public static FteStatus parse(byte[] body) throws XMLStreamException {
+		if (body == null || body.length == 0) {
+			throw new IllegalArgumentException("XML input is empty");
+		}
+		XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(body));
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static FteStatus parse(XMLStreamReader reader) throws XMLStreamException {
+		Map<String, String> fields = new LinkedHashMap<>();
+		// Messages without a schema location are named after their root element
+		String listType = null;
+		// Path of the current element below the root, and where each level of it starts
+		StringBuilder path = new StringBuilder();
+		int[] pathStart = new int[16];
+		StringBuilder text = new StringBuilder();
+		String entryKey = null;
+		int depth = 0;
+		// Depth of the last element started, the current element is a leaf if it is this deep
+		int leafDepth = 0;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				leafDepth = depth;
+				text.setLength(0);
+				if (depth >= pathStart.length) {
+					pathStart = Arrays.copyOf(pathStart, pathStart.length * 2);
+				}
+				pathStart[depth] = path.length();
+				String localName = reader.getLocalName();
+				if (depth == 1 && listType == null) {
+					listType = localName;
+				}
+				if (depth > 1) {
+					if (path.length() > 0) {
+						path.append('_');
+					}
+					path.append(localName);
+				}
+				entryKey = null;
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					String attrName = reader.getAttributeLocalName(i);
+					String value = reader.getAttributeValue(i);
+					if (XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(reader.getAttributeNamespace(i))) {
+						if (depth == 1 && attrName.equals("noNamespaceSchemaLocation")) {
+							String schema = schemaName(value);
+							if (!schema.isEmpty()) {
+								listType = schema;
+							}
+						}
+						continue;
+					}
+					if (localName.equals("entry") && attrName.equals("key")) {
+						entryKey = value.startsWith(PROPERTY_PREFIX) ? value.substring(PROPERTY_PREFIX.length()) : value;
+						continue;
+					}
+					addField(fields, path.length() == 0 ? attrName : path + "_" + attrName, value);
+				}
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+				if (leafDepth == depth) {
+					text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (leafDepth == depth) {
+					String value = text.toString().trim();
+					if (!value.isEmpty() && !value.startsWith("<?xml")) {
+						if (entryKey != null) {
+							addField(fields, entryKey, value);
+						} else {
+							addField(fields, path.length() == 0 ? "value" : path.toString(), value);
+						}
+					}
+					text.setLength(0);
+				}
+				entryKey = null;
+				path.setLength(pathStart[depth]);
+				depth--;
+			}
+		}
+		return new FteStatus(listType, fields);
+	}
+
+	private static void addField(Map<String, String> fields, String name, String value) {
+		fields.putIfAbsent(sanitizeLabel(name), value);
+	}
+
+	private static String schemaName(String location) {
+		String name = location.trim();
+		int slash = name.lastIndexOf('/');
+		if (slash != -1) {
+			name = name.substring(slash + 1);
+		}
+		if (name.endsWith(SCHEMA_SUFFIX)) {
+			name = name.substring(0, name.length() - SCHEMA_SUFFIX.length());
+		}
+		return name;
+	}
+
+	static String sanitizeLabel(String label) {
+		return INVALID_LABEL_CHARS.matcher(label).replaceAll("_").toLowerCase();
+	}
+}
@@ -16,93 +16,100 @@
 
 package xml_metrics_exporter;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.json.JsonReadFeature;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.exporter.PushGateway;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-// Push the data into Prometheus
+/**
+ * Keeps the metrics read from the status messages in one registry for the life
+ * of the exporter. Prometheus scrapes them from the /metrics endpoint, or where
+ * it can't reach the exporter they are pushed to a Pushgateway at a fixed
+ * interval, all in one request that replaces the previous push.
+ */
 public class JsonToPrometheus {
-	private static final Map<String, Gauge> gaugeMap = new HashMap<>();
+	private static final CollectorRegistry registry = new CollectorRegistry();
+	private static final FteMetrics metrics = new FteMetrics(registry);
 
-	public static void exportJson(String jsonContent) throws Exception {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS.mappedFeature());
+	private static HTTPServer httpServer;
+	private static ScheduledExecutorService pushScheduler;
+	private static PushGateway pushGateway;
+	private static String pushJob;
+	private static Map<String, String> pushGroupingKey;
 
-		// // Parse and clean input JSON string into a valid JSON array format
-		jsonContent = jsonContent.replaceAll("]\\s*\\[", ",");
-		if (!jsonContent.trim().startsWith("["))
-			jsonContent = "[" + jsonContent;
-		if (!jsonContent.trim().endsWith("]"))
-			jsonContent = jsonContent + "]";
-		jsonContent = jsonContent.replace("\\", "\\\\");
-		jsonContent = jsonContent.replaceAll(",\\s*}", "}")
-				.replaceAll(",\\s*]", "]");
+	public static void exportStatus(FteStatus status) {
+		metrics.record(status);
+	}
 
-		// Read the cleaned JSON content into a JsonNode tree
-		JsonNode root = mapper.readTree(jsonContent);
-		int counter = 0;
-		for (JsonNode entry : root) {
-			if (!entry.isObject())
-				continue;
-			Iterator<Map.Entry<String, JsonNode>> fields = entry.fields();
-			while (fields.hasNext()) {
-				Map.Entry<String, JsonNode> field = fields.next();
-				String listType = field.getKey();
-				JsonNode inner = field.getValue();
-				if (inner.isObject()) {
-					CollectorRegistry registry = new CollectorRegistry();
-					pushAsMetric(listType, inner, "entry_" + counter++, registry);
-					PushGateway pg = new PushGateway("localhost:9091");
-					Map<String, String> groupingKey = Map.of("instance", UUID.randomUUID().toString());
-					pg.pushAdd(registry, listType, groupingKey);
-					System.out.println(" Pushed job: " + listType);
-				}
-			}
+	public static void exportStatuses(List<FteStatus> statuses) {
+		for (FteStatus status : statuses) {
+			metrics.record(status);
 		}
 	}
 
-	/**
-	 * Converts a single JSON object into a Prometheus Gauge metric and registers
-	 * it.
-	 *
-	 * This method extracts fields from the given JSON node. String fields are
-	 * treated
-	 * as metric labels, and the first numeric field encountered is used as the
-	 * metric value.
-	 * The metric is registered with the provided Prometheus CollectorRegistry and
-	 * labeled
-	 * using the JSON fields.
-	 */
-	private static void pushAsMetric(String listName, JsonNode node, String instanceId, CollectorRegistry registry) {
-		Map<String, String> labelsMap = new LinkedHashMap<>();
-		double valueToPush = 1.0;
-		Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
-		while (fields.hasNext()) {
-			Map.Entry<String, JsonNode> field = fields.next();
-			String key = sanitizeLabel(field.getKey());
-			JsonNode val = field.getValue();
-			if (val.isNumber())
-				valueToPush = val.asDouble();
-			labelsMap.put(key, val.isTextual() ? val.asText() : val.toString());
-		}
+	// Registry of the metrics, for the exporter's own metrics
+	public static CollectorRegistry getRegistry() {
+		return registry;
+	}
+
+	// Report the IDs of completed transfers as exemplars, in the log, or both
+	public static void setIdentifierChannel(FteMetrics.IdentifierChannel channel) {
+		metrics.setIdentifierChannel(channel);
+	}
+
+	// Serve the metrics on http://<host>:<port>/metrics
+	public static synchronized void startHttpServer(int port) throws IOException {
+		httpServer = new HTTPServer.Builder()
+				.withPort(port)
+				.withRegistry(registry)
+				.withDaemonThreads(true)
+				.build();
+		System.out.println("Serving metrics on port " + httpServer.getPort());
+	}
+
+	// Push the metrics to the Pushgateway at address every intervalSeconds
+	public static synchronized void startPush(String address, int intervalSeconds, String job,
+			Map<String, String> groupingKey) {
+		pushGateway = new PushGateway(address);
+		pushJob = job;
+		pushGroupingKey = groupingKey;
+		pushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-push");
+			t.setDaemon(true);
+			return t;
+		});
+		pushScheduler.scheduleWithFixedDelay(JsonToPrometheus::push, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		System.out.println("Pushing metrics to " + address + " every " + intervalSeconds + " seconds");
+	}
+
+	private static void push() {
 		try {
-			Gauge gauge = Gauge.build()
-					.name(sanitizeLabel(listName) + "_info")
-					.help("Metrics for " + listName)
-					.labelNames(labelsMap.keySet().toArray(new String[0]))
-					.register(registry);
-			gauge.labels(labelsMap.values().toArray(new String[0])).set(valueToPush);
-		} catch (IllegalArgumentException e) {
-			System.err.println("✘ Failed to push metric for " + listName + ": " + e.getMessage());
+			pushGateway.push(registry, pushJob, pushGroupingKey);
+		} catch (IOException e) {
+			System.err.println("Failed to push metrics to Prometheus: " + e.getMessage());
 		}
 	}
 
-	private static String sanitizeLabel(String label) {
-		return label.replaceAll("[^a-zA-Z0-9_]", "_").toLowerCase();
+	// Push the metrics a last time and stop serving them
+	public static synchronized void stop() {
+		if (pushScheduler != null) {
+			pushScheduler.shutdown();
+			try {
+				pushScheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			push();
+			pushScheduler = null;
+		}
+		if (httpServer != null) {
+			httpServer.close();
+			httpServer = null;
+		}
 	}
 }
@@ -0,0 +1,317 @@
+/*
+* (c) Copyright IBM Corporation 2025
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package xml_metrics_exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * Processes the status messages in stages, so that a slow stage does not hold
+ * up the others:
+ *
+ * receive - one or more consumers, each on its own session and thread, take
+ * the message bodies off the subscription. With more than one consumer, or
+ * when a subscription name is given, they share one subscription, so each
+ * message goes to one consumer of this or any other exporter using the name.
+ *
+ * parse - a pool of workers reads the bodies into FteStatus.
+ *
+ * export - one thread records the statuses in the metrics, in batches.
+ *
+ * Each body is numbered as it is received, and the export thread records the
+ * statuses in that order whichever worker finishes first, so that the last
+ * status of an agent or monitor received is the one shown. With more than one
+ * consumer the messages are numbered in the order the consumers receive them,
+ * which can differ from the order they were published when they arrive close
+ * together. Exporters sharing a subscription each see only some of the
+ * messages, so the status shown by each of them can be out of date.
+ *
+ * The stages are joined by bounded queues. When a queue is full the stage
+ * before it waits, and in the end the consumers stop receiving, so messages
+ * wait on the queue manager rather than in memory. The depth of each queue is
+ * reported in mft_exporter_queue_depth.
+ */
+public class StatusPipeline {
+	// Time a consumer waits for a message before checking whether it has been stopped
+	private static final long RECEIVE_WAIT_MILLIS = 1000;
+	// Largest number of statuses recorded in one batch
+	private static final int MAX_BATCH = 256;
+
+	// A message body or its status, with the number given when it was received.
+	// The status is null if the body could not be read.
+	private static final class Item {
+		final long sequence;
+		final byte[] body;
+		final FteStatus status;
+
+		Item(long sequence, byte[] body, FteStatus status) {
+			this.sequence = sequence;
+			this.body = body;
+			this.status = status;
+		}
+	}
+
+	// Tells the workers and the export thread to finish
+	private static final Item END = new Item(-1, null, null);
+
+	private final BlockingQueue<Item> parseQueue;
+	private final BlockingQueue<Item> exportQueue;
+	private final int parseWorkers;
+	// Number given to the next body received
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	private final List<Thread> receivers = new ArrayList<>();
+	private final List<Session> sessions = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private Thread exporter;
+
+	private volatile boolean receiving = false;
+	private volatile long lastMessageTime = System.nanoTime();
+	private Runnable onFailure = () -> {};
+
+	private final Counter messagesReceived;
+	private final Counter parseErrors;
+	private final Counter queueFull;
+
+	public StatusPipeline(int parseWorkers, int queueCapacity, CollectorRegistry registry) {
+		this.parseWorkers = parseWorkers;
+		this.parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+		this.exportQueue = new ArrayBlockingQueue<>(queueCapacity);
+		messagesReceived = Counter.build()
+				.name("mft_exporter_messages_received_total")
+				.help("Messages received from the subscription")
+				.register(registry);
+		parseErrors = Counter.build()
+				.name("mft_exporter_parse_errors_total")
+				.help("Messages that could not be read")
+				.register(registry);
+		queueFull = Counter.build()
+				.name("mft_exporter_queue_full_total")
+				.help("Times a stage waited because the queue to the next stage was full")
+				.labelNames("stage")
+				.register(registry);
+		new QueueCollector().register(registry);
+	}
+
+	// Reports the number of items waiting in each queue
+	private class QueueCollector extends Collector {
+		@Override
+		public List<MetricFamilySamples> collect() {
+			GaugeMetricFamily depth = new GaugeMetricFamily("mft_exporter_queue_depth",
+					"Items waiting for a stage", List.of("stage"));
+			depth.addMetric(List.of("parse"), parseQueue.size());
+			depth.addMetric(List.of("export"), exportQueue.size());
+			GaugeMetricFamily capacity = new GaugeMetricFamily("mft_exporter_queue_capacity",
+					"Items the queue to a stage can hold", List.of("stage"));
+			capacity.addMetric(List.of("parse"), parseQueue.size() + parseQueue.remainingCapacity());
+			capacity.addMetric(List.of("export"), exportQueue.size() + exportQueue.remainingCapacity());
+			return List.of(depth, capacity);
+		}
+	}
+
+	// Called on a consumer's thread if it fails to receive messages
+	public void setOnFailure(Runnable onFailure) {
+		this.onFailure = onFailure;
+	}
+
+	// Time the last message was received, from System.nanoTime
+	public long getLastMessageTime() {
+		return lastMessageTime;
+	}
+
+	/**
+	 * Start the stages and the given number of consumers on the topic. The
+	 * consumers share the subscription with the given name, or if it is null and
+	 * there is only one consumer, it has a subscription of its own.
+	 */
+	public synchronized void start(Connection connection, String topicName, int consumers, String subscriptionName)
+			throws JMSException {
+		exporter = new Thread(this::export, "exporter-export");
+		exporter.start();
+		for (int i = 0; i < parseWorkers; i++) {
+			Thread worker = new Thread(this::parse, "exporter-parse-" + i);
+			workers.add(worker);
+			worker.start();
+		}
+
+		nextSequence.set(0);
+		receiving = true;
+		lastMessageTime = System.nanoTime();
+		for (int i = 0; i < consumers; i++) {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			sessions.add(session);
+			Topic topic = session.createTopic(topicName);
+			MessageConsumer consumer = subscriptionName == null
+					? session.createConsumer(topic)
+					: session.createSharedConsumer(topic, subscriptionName);
+			Thread receiver = new Thread(() -> receive(consumer), "exporter-receive-" + i);
+			receivers.add(receiver);
+			receiver.start();
+		}
+		System.out.println("Waiting for messages... from " + topicName + " on " + consumers + " consumer(s)"
+				+ (subscriptionName == null ? "" : " sharing subscription " + subscriptionName));
+	}
+
+	private void receive(MessageConsumer consumer) {
+		try {
+			while (receiving) {
+				Message msg = consumer.receive(RECEIVE_WAIT_MILLIS);
+				if (msg == null) {
+					continue;
+				}
+				lastMessageTime = System.nanoTime();
+				messagesReceived.inc();
+				if (msg instanceof TextMessage) {
+					TextMessage textMsg = (TextMessage) msg;
+					System.out.println(textMsg);
+				} else if (msg instanceof BytesMessage) {
+					BytesMessage bytesMsg = (BytesMessage) msg;
+					int bodyLen = (int) bytesMsg.getBodyLength();
+					byte[] body = new byte[bodyLen];
+					bytesMsg.readBytes(body, bodyLen);
+					Item item = new Item(nextSequence.getAndIncrement(), body, null);
+					if (!parseQueue.offer(item)) {
+						queueFull.labels("parse").inc();
+						parseQueue.put(item);
+					}
+				}
+			}
+		} catch (JMSException jmsex) {
+			if (receiving) {
+				System.out.println("Exception caught receiving messages:\n" + jmsex);
+				onFailure.run();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void parse() {
+		try {
+			while (true) {
+				Item item = parseQueue.take();
+				if (item == END) {
+					return;
+				}
+				FteStatus status = null;
+				try {
+					status = FteStatusParser.parse(item.body);
+				} catch (Exception e) {
+					parseErrors.inc();
+					System.out.println("Exception caught reading message:\n" + e);
+				}
+				// Passed on even if it could not be read, so that the statuses after it are not held back
+				Item parsed = new Item(item.sequence, null, status);
+				if (!exportQueue.offer(parsed)) {
+					queueFull.labels("export").inc();
+					exportQueue.put(parsed);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void export() {
+		List<Item> taken = new ArrayList<>(MAX_BATCH);
+		List<FteStatus> batch = new ArrayList<>(MAX_BATCH);
+		// Statuses parsed before one received earlier than them
+		Map<Long, Item> waiting = new HashMap<>();
+		long next = 0;
+		try {
+			boolean ended = false;
+			while (!ended) {
+				taken.add(exportQueue.take());
+				exportQueue.drainTo(taken, MAX_BATCH - 1);
+				for (Item item : taken) {
+					if (item == END) {
+						ended = true;
+					} else {
+						waiting.put(item.sequence, item);
+					}
+				}
+				taken.clear();
+				Item item;
+				while ((item = waiting.remove(next)) != null) {
+					next++;
+					if (item.status != null) {
+						batch.add(item.status);
+					}
+				}
+				if (batch.isEmpty()) {
+					continue;
+				}
+				try {
+					JsonToPrometheus.exportStatuses(batch);
+				} catch (Exception e) {
+					System.err.println("Failed to record metrics: " + e.getMessage());
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop receiving, close the consumers' sessions and wait for the messages
+	 * already received to be parsed and recorded.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		receiving = false;
+		for (Thread receiver : receivers) {
+			receiver.join();
+		}
+		for (Session session : sessions) {
+			try {
+				session.close();
+			} catch (JMSException jmsex) {
+				System.out.println("Session could not be closed");
+			}
+		}
+		for (int i = 0; i < workers.size(); i++) {
+			parseQueue.put(END);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (exporter != null) {
+			exportQueue.put(END);
+			exporter.join();
+		}
+		receivers.clear();
+		sessions.clear();
+		workers.clear();
+		exporter = null;
+	}
+}
@@ -16,44 +16,27 @@
 
 package xml_metrics_exporter;
 
-import java.nio.charset.StandardCharsets;
 import java.sql.Wrapper;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 import java.lang.Process;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
-import javax.jms.Destination;
 import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageListener;
-import javax.jms.MessageConsumer;
-import javax.jms.Session;
-import javax.jms.TextMessage;
-import javax.jms.BytesMessage;
 
 import com.ibm.msg.client.jms.JmsConnectionFactory;
 import com.ibm.msg.client.jms.JmsFactoryFactory;
 import com.ibm.msg.client.wmq.WMQConstants;
 
-import org.w3c.dom.*;
-
-import javax.xml.parsers.*;
-
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.StringReader;
-import org.xml.sax.InputSource;
 
 import xml_metrics_exporter.JsonToPrometheus;
 
@@ -68,263 +51,66 @@ public class XMLToJson {
   private static String destinationName = "topic://SYSTEM.FTE/#";
   private static boolean isTopic = true;
   private static boolean clientTransport = false;
-  public static String name;
-  public static String key1;
 
   private static int timeout = Integer.MAX_VALUE;
 
-  private static int status = 1;
-
-  private void consumeMessages(Connection connection) throws Exception {
-    // Variables
-    MessageConsumer consumer = null;
-    Session consumerSession = null;
-
-    consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-    Destination destination = consumerSession.createTopic("topic://SYSTEM.FTE/#");
-    consumer = consumerSession.createConsumer(destination);
-    System.out.println("Waiting for messages... from " + destination.toString());
-
-    // Now receive messages synchronously or asynchronously
-    // Create and register a new MessageListener for this consumer
-    consumer.setMessageListener(new MessageListener() {
-      public void onMessage(Message msg) {
-        try {
-          if (msg instanceof TextMessage) {
-            TextMessage textMsg = (TextMessage) msg;
-            System.out.println(textMsg);
-          } else if (msg instanceof BytesMessage) {
-            BytesMessage bytesMsg = (BytesMessage) msg;
-            int bodyLen = (int) bytesMsg.getBodyLength();
-            byte[] body = new byte[bodyLen];
-            bytesMsg.readBytes(body, bodyLen);
-            String bodyStr = new String(body, StandardCharsets.UTF_8);
-            // fetching Name
-            int start_index = bodyStr.indexOf("xsi:noNamespaceSchemaLocation=\"");
-            int end_index = bodyStr.indexOf(".xsd");
-            if (start_index != -1 && end_index != -1) {
-              name = bodyStr.substring(start_index + 31, end_index);
-              System.out.println("Json formant message for " + bodyStr.substring(start_index + 31, end_index));
-            } else {
-              name = "monitorList";
-              System.out.println("Json formant message for Monitor list");
-            }
-            String rawJson = convertXmlToJson(bodyStr).trim();
-            // Split multiple JSON blocks correctly
-            String[] jsonObjects = rawJson.split("(?<=\\})\\s*(?=\\{)");
-            StringBuilder arrayOutput = new StringBuilder();
-            arrayOutput.append("[\n");
-            for (String obj : jsonObjects) {
-
-              String cleanedObj = obj
-                  .replaceAll("\"(xmlns(:[^\"]*)?)\"\\s*:\\s*\"[^\"]*\",?", "") // removes xmlns:* entries
-                  .replaceAll("\"xsi:[^\"]*\"\\s*:\\s*\"[^\"]*\",?", ""); // removes xsi:* entries
-
-              arrayOutput.append("  {\n")
-                  .append("    \"").append(name).append("\": ")
-                  .append(cleanedObj.trim()).append("\n")
-                  .append("  },\n");
-            }
-            // Remove the trailing comma
-            if (arrayOutput.toString().endsWith(",\n")) {
-              arrayOutput.setLength(arrayOutput.length() - 2);
-              arrayOutput.append("\n");
-            }
-            arrayOutput.append("]");
-            String final_output = arrayOutput.toString();
-
-            System.out.println(final_output);
-            // run the java program that will push the json data into prometheus
-            try {
-              RunPrometheusProgram(final_output);
-            } catch (Exception e) {
-              e.printStackTrace();
-            } // end try
-
-          }
-        } // end try
-        catch (Exception e) {
-          System.out.println("Exception caught in onMessage():\n" + e);
-        }
-        return;
-      } // end onMessage()
-    }); // end setMessageListener
-  }
-
-  // Recieve xml data and pass it for parsing
-  public static String convertXmlToJson(String xml) throws Exception {
-    if (xml == null || xml.trim().isEmpty()) {
-      throw new IllegalArgumentException("XML input is empty");
-    }
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    DocumentBuilder builder = factory.newDocumentBuilder();
-
-    ByteArrayInputStream input = new ByteArrayInputStream(xml.getBytes());
-    Document doc = builder.parse(new InputSource(input));
-    Element root = doc.getDocumentElement();
-    return beautifyJson(xmlToJson(root, 0));
-  }
-
-  // Structurally convert the xml into json
-  private static String xmlToJson(Element element, int indent) {
-    StringBuilder json = new StringBuilder();
-    String indentStr = " ".repeat(indent);
-    json.append(indentStr).append("{\n");
-    String childIndent = " ".repeat(indent + 2);
-    // Add attributes
-    NamedNodeMap attributes = element.getAttributes();
-    for (int i = 0; i < attributes.getLength(); i++) {
-      Node attr = attributes.item(i);
-      json.append(childIndent)
-          .append("\"").append(attr.getNodeName()).append("\": ")
-          .append("\"").append(attr.getNodeValue()).append("\",\n");
-    }
-    // Handle <properties> metadata block
-    if (element.getTagName().equals("properties")) {
-      NodeList children = element.getChildNodes();
-      json.append(childIndent).append("\"metaData\": {\n");
-      String metaIndent = " ".repeat(indent + 4);
-      for (int i = 0; i < children.getLength(); i++) {
-        Node node = children.item(i);
-        if (node instanceof Element entry && entry.getTagName().equals("entry")) {
-          String key = entry.getAttribute("key");
-          if (key.startsWith("com.ibm.wmqfte.")) {
-            key = key.substring("com.ibm.wmqfte.".length());
-          }
-          String value = entry.getTextContent().trim();
-          if (key.equals("agentTraceLevel") && value.startsWith("<?xml")) {
-            try {
-              Element embeddedRoot = parseXmlStringToElement(value);
-              String embeddedJson = xmlToJson(embeddedRoot, indent + 6);
-              json.append(metaIndent).append("\"").append(key).append("\": ")
-                  .append(embeddedJson).append(",\n");
-            } catch (Exception e) {
-              json.append(metaIndent).append("\"").append(key).append("\": ")
-                  .append("\"").append(beautifyJson(value)).append("\",\n");
-            }
-          } else {
-            json.append(metaIndent).append("\"").append(key).append("\": ")
-                .append("\"").append(beautifyJson(value)).append("\",\n");
-          }
-        }
-      }
-      json.setLength(json.length() - 2);
-      json.append("\n").append(childIndent).append("},\n");
-    } else {
-      // Group children by tag name
-      Map<String, List<Element>> groupedChildren = new LinkedHashMap<>();
-      NodeList children = element.getChildNodes();
-      for (int i = 0; i < children.getLength(); i++) {
-        Node child = children.item(i);
-        if (child instanceof Element e) {
-          groupedChildren.computeIfAbsent(e.getTagName(), k -> new ArrayList<>()).add(e);
-        }
-      }
-      // Add each group
-      for (Map.Entry<String, List<Element>> entry : groupedChildren.entrySet()) {
-        String tag = entry.getKey();
-        List<Element> elems = entry.getValue();
-        json.append(childIndent).append("\"").append(tag).append("\": ");
-        if (elems.size() > 1) {
-          json.append("[\n");
-          for (Element e : elems) {
-            json.append(xmlToJson(e, indent + 4)).append(",\n");
-          }
-          json.setLength(json.length() - 2);
-          json.append("\n").append(childIndent).append("],\n");
-        } else {
-          Element single = elems.get(0);
-          String text = single.getTextContent().trim();
-          boolean hasAttributes = single.getAttributes().getLength() > 0;
-          boolean hasChildElements = single.getElementsByTagName("*").getLength() > 0;
-          // Handle embedded XML tags like taskXML or agentTraceLevel
-          if ((tag.equals("taskXML") || tag.equals("agentTraceLevel")) && text.startsWith("<?xml")) {
-            try {
-              Element embeddedRoot = parseXmlStringToElement(text);
-              String embeddedJson = xmlToJson(embeddedRoot, indent + 4);
-              json.append(embeddedJson).append(",\n");
-            } catch (Exception e) {
-              json.append("\"").append(beautifyJson(text)).append("\",\n");
-            }
-          } else if (!hasChildElements && !hasAttributes) {
-            json.append("\"").append(beautifyJson(text)).append("\",\n");
-          } else if (!hasChildElements && hasAttributes) {
-            json.append("{\n");
-            NamedNodeMap childAttrs = single.getAttributes();
-            for (int i = 0; i < childAttrs.getLength(); i++) {
-              Node attr = childAttrs.item(i);
-              if (attr.getNodeValue().startsWith("com.ibm.wmqfte.")) {
-                key1 = attr.getNodeValue().substring("com.ibm.wmqfte.".length());
-              }
-              json.append(" ".repeat(indent + 4))
-                  .append("\"").append(attr.getNodeName()).append("\": ")
-                  .append("\"").append(attr.getNodeValue()).append("\",\n");
-            }
-            if (!text.isEmpty()) {
-              json.append(" ".repeat(indent + 4))
-                  .append("\"value\": \"").append(beautifyJson(text)).append("\"\n");
-            } else {
-              json.setLength(json.length() - 2);
-              json.append("\n");
-            }
-            json.append(childIndent).append("},\n");
-          } else {
-            json.append(xmlToJson(single, indent + 2)).append(",\n");
-          }
-        }
-      }
-      // If no children, add text content
-      if (groupedChildren.isEmpty()) {
-        String textContent = element.getTextContent().trim();
-        if (!textContent.isEmpty()) {
-          json.append(childIndent).append("\"value\": \"").append(beautifyJson(textContent)).append("\",\n");
-        }
-      }
-    }
-    // Remove trailing comma
-    if (json.toString().endsWith(",\n")) {
-      json.setLength(json.length() - 2);
-      json.append("\n");
-    }
-    json.append(indentStr).append("}");
-    return json.toString();
-  }
-
-  // Provides the indent and adds readability to json data
-  private static String beautifyJson(String Json) {
-    return Json.replaceAll("\n\\s*\n", "\n").trim();
-  }
-
-  // Parse the xml strings into element
-  private static Element parseXmlStringToElement(String xml) throws Exception {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    factory.setIgnoringElementContentWhitespace(true);
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    Document doc = builder.parse(new InputSource(new StringReader(xml)));
-    return doc.getDocumentElement();
-  }
+  // Port of the /metrics endpoint, 0 to not serve the metrics
+  private static int metricsPort = 9400;
+  // Pushgateway to push the metrics to, null to not push them
+  private static String pushGateway = null;
+  private static int pushInterval = 15;
+  // Where the IDs of completed transfers are reported
+  private static FteMetrics.IdentifierChannel identifierChannel = FteMetrics.IdentifierChannel.NONE;
+  // Number of consumers, and the name of the subscription they share
+  private static int consumers = 1;
+  private static String subscriptionName = null;
+  private static final String DEFAULT_SUBSCRIPTION_NAME = "mft-metrics-exporter";
+  // Number of workers reading messages, and the number of messages each stage can queue
+  private static int parseWorkers = Runtime.getRuntime().availableProcessors();
+  private static int queueCapacity = 1000;
 
-  // Push the json data into Prometheus
-  public static void RunPrometheusProgram(String final_output) {
-    JsonToPrometheus jsonToPrometheus = new JsonToPrometheus();
-    try {
-      jsonToPrometheus.exportJson(final_output);
-    } catch (Exception e) {
-      System.err.println("Failed to push metrics to Prometheus:");
+  private static int status = 1;
 
+  // Released when the exporter is asked to stop
+  private static final CountDownLatch shutdownLatch = new CountDownLatch(1);
+  // Released once the sessions, the connection and the metrics are closed
+  private static final CountDownLatch stoppedLatch = new CountDownLatch(1);
+  private static volatile boolean shuttingDown = false;
+
+  // Receives, parses and records the status messages
+  private StatusPipeline pipeline = null;
+
+  private void consumeMessages(Connection connection) throws JMSException {
+    // Stages of the pipeline: receive on the consumers' threads, parse on the
+    // workers and record the metrics in batches
+    pipeline = new StatusPipeline(parseWorkers, queueCapacity, JsonToPrometheus.getRegistry());
+    // Stop the exporter if the consumers can no longer receive messages
+    pipeline.setOnFailure(shutdownLatch::countDown);
+    // More than one consumer must share a subscription, otherwise each receives every message
+    String subscription = subscriptionName;
+    if (subscription == null && consumers > 1) {
+      subscription = DEFAULT_SUBSCRIPTION_NAME;
     }
+    pipeline.start(connection, destinationName, consumers, subscription);
   }
 
   public static void main(String[] args) {
     parseArgs(args);
     XMLToJson Jc = new XMLToJson();
 
+    // Stop cleanly when the process is interrupted or terminated: record the messages
+    // already received, close the connection and push the metrics a last time
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      shuttingDown = true;
+      shutdownLatch.countDown();
+      try {
+        stoppedLatch.await(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "exporter-shutdown"));
+
     Connection connection = null;
-    Session session = null;
-    Destination destination = null;
-    MessageConsumer consumer = null;
     try {
       JmsFactoryFactory ff = JmsFactoryFactory.getInstance(WMQConstants.WMQ_PROVIDER);
       JmsConnectionFactory cf = ff.createConnectionFactory();
@@ -344,42 +130,36 @@ public class XMLToJson {
         cf.setStringProperty(WMQConstants.PASSWORD, password);
         cf.setBooleanProperty(WMQConstants.USER_AUTHENTICATION_MQCSP, true);
       }
-      connection = cf.createConnection();
-      session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-      destination = session.createTopic(destinationName);
-      consumer = session.createConsumer(destination);
-
-      connection.start();
-      try {
-        Jc.consumeMessages(connection);
-      } catch (Exception e) {
-        e.printStackTrace();
+      JsonToPrometheus.setIdentifierChannel(identifierChannel);
+      if (metricsPort != 0) {
+        JsonToPrometheus.startHttpServer(metricsPort);
+      }
+      if (pushGateway != null) {
+        JsonToPrometheus.startPush(pushGateway, pushInterval, "mft_metrics_exporter",
+            Map.of("instance", queueManagerName));
       }
 
-      long startTime = System.currentTimeMillis();
-      long elapsedTime;
-      do {
-        elapsedTime = System.currentTimeMillis() - startTime;
-      } while (timeout > elapsedTime);
-      System.out.format("No message received in %d seconds!\n", timeout / 1000);
+      connection = cf.createConnection();
+      connection.start();
+      Jc.consumeMessages(connection);
+      awaitShutdown(Jc.pipeline);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
     } catch (JMSException jmsex) {
       recordFailure(jmsex);
+    } catch (IOException ioex) {
+      System.out.println("Metrics endpoint could not be started");
+      recordFailure(ioex);
     } finally {
-      if (consumer != null) {
-        try {
-          consumer.close();
-        } catch (JMSException jmsex) {
-          System.out.println("Consuner could not be closed");
-          recordFailure(jmsex);
-        }
+      if (shuttingDown) {
+        System.out.println("Stopping...");
       }
-      if (session != null) {
+      // Stop receiving and wait for the messages already received to be recorded
+      if (Jc.pipeline != null) {
         try {
-          session.close();
-        } catch (JMSException jmsex) {
-          System.out.println("Session could not be closed");
-          recordFailure(jmsex);
+          Jc.pipeline.stop();
+        } catch (InterruptedException iex) {
+          Thread.currentThread().interrupt();
         }
       }
       if (connection != null) {
@@ -390,10 +170,33 @@ public class XMLToJson {
           recordFailure(jmsex);
         }
       }
+      JsonToPrometheus.stop();
+      stoppedLatch.countDown();
     }
 
-    System.exit(status);
+    // When stopped by the shutdown hook the JVM is already exiting
+    if (!shuttingDown) {
+      System.exit(status);
+    }
+  }
 
+  // Wait until the exporter is stopped, or until no message has been received for the timeout
+  private static void awaitShutdown(StatusPipeline pipeline) throws InterruptedException {
+    if (timeout == Integer.MAX_VALUE) {
+      shutdownLatch.await();
+      return;
+    }
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    while (true) {
+      long idle = System.nanoTime() - pipeline.getLastMessageTime();
+      if (idle >= timeoutNanos) {
+        System.out.format("No message received in %d seconds!\n", timeout / 1000);
+        return;
+      }
+      if (shutdownLatch.await(timeoutNanos - idle, TimeUnit.NANOSECONDS)) {
+        return;
+      }
+    }
   }
 
   private static void ProcessJMSException(JMSException jmsex) {
@@ -476,6 +279,45 @@ public class XMLToJson {
               throw new IllegalArgumentException("Timeout must be a whole number of seconds");
             }
             break;
+          case 'e':
+            try {
+              metricsPort = Integer.parseInt(args[++i]);
+            } catch (NumberFormatException nfe) {
+              throw new IllegalArgumentException("Metrics port must be a number");
+            }
+            break;
+          case 'g':
+            pushGateway = args[++i];
+            break;
+          case 'i':
+            try {
+              pushInterval = Integer.parseInt(args[++i]);
+            } catch (NumberFormatException nfe) {
+              throw new IllegalArgumentException("Push interval must be a whole number of seconds");
+            }
+            if (pushInterval <= 0) {
+              throw new IllegalArgumentException("Push interval must be a whole number of seconds");
+            }
+            break;
+          case 'x':
+            try {
+              identifierChannel = FteMetrics.IdentifierChannel.valueOf(args[++i].toUpperCase());
+            } catch (IllegalArgumentException iae) {
+              throw new IllegalArgumentException("Transfer IDs must be reported to none, exemplar, log or both");
+            }
+            break;
+          case 'c':
+            consumers = parsePositive(args[++i], "Number of consumers");
+            break;
+          case 's':
+            subscriptionName = args[++i];
+            break;
+          case 'n':
+            parseWorkers = parsePositive(args[++i], "Number of workers");
+            break;
+          case 'q':
+            queueCapacity = parsePositive(args[++i], "Queue capacity");
+            break;
           default: {
             throw new IllegalArgumentException("Unknown argument: " + opt);
           }
@@ -501,10 +343,24 @@ public class XMLToJson {
     return;
   }
 
+  private static int parsePositive(String value, String name) {
+    try {
+      int number = Integer.parseInt(value);
+      if (number > 0) {
+        return number;
+      }
+    } catch (NumberFormatException nfe) {
+      // reported below
+    }
+    throw new IllegalArgumentException(name + " must be a whole number greater than 0");
+  }
+
   private static void printUsage() {
     System.out.println("\nUsage:");
     System.out.println(
-        "XMLToJson -m queueManagerName [-h host -p port -l channel] [-u user -w passWord] [-t timeout_seconds]");
+        "XMLToJson -m queueManagerName [-h host -p port -l channel] [-u user -w passWord] [-t timeout_seconds]"
+            + " [-e metrics_port] [-g pushgateway_host:port [-i push_interval_seconds]]"
+            + " [-x none|exemplar|log|both] [-c consumers] [-s subscription] [-n workers] [-q queue_capacity]");
     return;
   }
 }
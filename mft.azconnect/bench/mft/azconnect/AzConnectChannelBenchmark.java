@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures streaming one large blob through AzConnectReadChannel and
+ * AzConnectWriteChannel, the way the agent does for a single file transfer.
+ * Each invocation moves the whole blob, so the score is the time per blob.
+ *
+ * The default size is 10 GB. Use -p blobSize=... for quicker runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AzConnectChannelBenchmark {
+	/** Size of the blob moved by each invocation */
+	@Param({"10737418240"})
+	public long blobSize;
+
+	/** Size of the buffer the agent passes to read and write */
+	@Param({"65536", "262144", "1048576"})
+	public int bufferSize;
+
+	/** azConnectReadThreads and azConnectWriteThreads */
+	@Param({"2", "4", "8"})
+	public int threads;
+
+	/** azConnectReadRangeSize and azConnectWriteBlockSize */
+	@Param({"4194304"})
+	public int rangeSize;
+
+	/** Direct buffers, as used by the agent for some transfers, or heap buffers */
+	@Param({"false", "true"})
+	public boolean directBuffer;
+
+	/** Delay added to each request to the blob */
+	@Param({"0"})
+	public long requestLatencyMicros;
+
+	private ByteBuffer buffer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(AzConnectConstants.PROP_READ_THREADS, String.valueOf(threads));
+		properties.put(AzConnectConstants.PROP_READ_RANGE_SIZE, String.valueOf(rangeSize));
+		properties.put(AzConnectConstants.PROP_WRITE_THREADS, String.valueOf(threads));
+		properties.put(AzConnectConstants.PROP_WRITE_BLOCK_SIZE, String.valueOf(rangeSize));
+		AzConnectIOUtil.getInstance().setProperties(properties);
+
+		buffer = directBuffer ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	@Benchmark
+	public long read(final Blackhole bh) throws IOException {
+		AzConnectMemoryBlob blob = new AzConnectMemoryBlob("large.bin", blobSize, requestLatencyMicros);
+		AzConnectReadChannel channel = new AzConnectReadChannel(blob);
+		long total = 0;
+		try {
+			int count;
+			buffer.clear();
+			while((count = channel.read(buffer)) >= 0) {
+				total += count;
+				buffer.flip();
+				bh.consume(buffer.get(0));
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		if(total != blobSize)
+			throw new IOException("Read " + total + " bytes of " + blobSize);
+		return total;
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		AzConnectMemoryBlob blob = new AzConnectMemoryBlob("large.bin", -1, requestLatencyMicros);
+		AzConnectWriteChannel channel = new AzConnectWriteChannel(blob);
+		long total = 0;
+		try {
+			while(total < blobSize) {
+				buffer.clear();
+				if(blobSize - total < bufferSize)
+					buffer.limit((int) (blobSize - total));
+				total += channel.write(buffer);
+			}
+		} finally {
+			channel.close();
+		}
+		if(blob.getSize() != blobSize)
+			throw new IOException("Committed " + blob.getSize() + " bytes of " + blobSize);
+		return total;
+	}
+}
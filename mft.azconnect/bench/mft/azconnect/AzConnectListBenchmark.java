@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitResourcePath;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+/**
+ * Measures the exit's side of listing a container: turning each listed blob
+ * into a path and the name calls the agent then makes on it. The blobs are
+ * built locally, so the time of the list requests themselves is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AzConnectListBenchmark {
+	/** Number of blobs in the listing */
+	@Param({"5000", "100000"})
+	public int blobs;
+
+	private CloudBlockBlob[] listing;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		CloudBlobContainer container = new CloudBlobContainer(new URI("http://127.0.0.1:10000/devstoreaccount1/mftcontainer"));
+		listing = new CloudBlockBlob[blobs];
+		for(int i = 0; i < blobs; i++) {
+			listing[i] = container.getBlockBlobReference("reports/2018/file" + i + ".csv");
+		}
+	}
+
+	@Benchmark
+	public void listPaths(final Blackhole bh) {
+		AzConnectIOUtil util = AzConnectIOUtil.getInstance();
+		for(CloudBlockBlob blob : listing) {
+			IOExitResourcePath path = util.newListedPath(blob);
+			bh.consume(path.getName());
+			bh.consume(path.getPath());
+		}
+	}
+}
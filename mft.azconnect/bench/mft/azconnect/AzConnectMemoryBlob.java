@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.microsoft.azure.storage.StorageException;
+
+/**
+ * In-process stand-in for a block blob, used by the channel benchmark in place
+ * of AzConnectBlob so the exit's own read and write paths can be measured on
+ * large blobs without an Azure account. The small file benchmark uses
+ * AzConnectStorageServer instead, so that AzConnectBlob runs too.
+ *
+ * The blob's content is not stored. Downloads copy from a shared pattern, so
+ * blobs of any size can be read, and uploaded blocks are only counted. Each
+ * request can be delayed to stand in for the network round trip.
+ *
+ * The SDK's own BlobInputStream and BlobOutputStream need a live endpoint, so
+ * this blob always uses the exit's ranged reader and block writer.
+ */
+public class AzConnectMemoryBlob extends AzConnectStorage {
+	/** Content returned by downloads, repeated for the whole blob */
+	private static final byte[] PATTERN = new byte[1024 * 1024];
+	static {
+		for(int i = 0; i < PATTERN.length; i++) {
+			PATTERN[i] = (byte) (i * 31 + (i >>> 8));
+		}
+	}
+
+	private final String name;
+	private final long requestLatencyNanos;
+	private volatile long size;
+	private volatile long lastModified;
+	private volatile boolean exists;
+	/** Bytes uploaded in blocks that are not yet committed */
+	private final AtomicLong stagedBytes = new AtomicLong(0);
+	/** Number of requests made to the blob, including attribute fetches */
+	private final AtomicLong requests = new AtomicLong(0);
+
+	/**
+	 * Creates a blob of the given size.
+	 * @param name blob name
+	 * @param size blob size in bytes, or -1 if the blob does not exist yet
+	 * @param requestLatencyMicros delay added to each request
+	 */
+	public AzConnectMemoryBlob(final String name, final long size, final long requestLatencyMicros) {
+		super(AzConnectConstants.AZ_CONNECT_STORAGE_BLOB);
+		this.name = name;
+		this.requestLatencyNanos = TimeUnit.MICROSECONDS.toNanos(requestLatencyMicros);
+		this.exists = size >= 0;
+		this.size = Math.max(size, 0);
+		this.lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * Stands in for the network round trip of a request.
+	 */
+	private void request() {
+		requests.incrementAndGet();
+		if(requestLatencyNanos > 0)
+			LockSupport.parkNanos(requestLatencyNanos);
+	}
+
+	/**
+	 * Returns the number of requests made to the blob.
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	protected boolean exists() throws StorageException {
+		return exists;
+	}
+
+	@Override
+	protected long getSize() {
+		return size;
+	}
+
+	@Override
+	protected long getLastModifiedTime() {
+		return lastModified;
+	}
+
+	@Override
+	protected void fetchAttributes() throws StorageException {
+		request();
+	}
+
+	@Override
+	protected boolean isCommitDeferred() {
+		// Routes writes through the block writer even with a single write thread
+		return true;
+	}
+
+	@Override
+	protected int downloadRange(final long offset, final long length, final byte[] buffer, final int bufferOffset,
+			final String etag) throws StorageException {
+		request();
+		int count = (int) Math.min(length, size - offset);
+		int done = 0;
+		while(done < count) {
+			int patternOffset = (int) ((offset + done) % PATTERN.length);
+			int chunk = Math.min(count - done, PATTERN.length - patternOffset);
+			System.arraycopy(PATTERN, patternOffset, buffer, bufferOffset + done, chunk);
+			done += chunk;
+		}
+		return Math.max(count, 0);
+	}
+
+	@Override
+	protected void uploadBlock(final String blockId, final byte[] data, final int length) throws StorageException, IOException {
+		request();
+		stagedBytes.addAndGet(length);
+	}
+
+	@Override
+	protected void commitBlockList(final List<String> blockIds) throws StorageException {
+		request();
+		size = stagedBytes.getAndSet(0);
+		lastModified = System.currentTimeMillis();
+		exists = true;
+	}
+
+	@Override
+	protected void delete() throws StorageException {
+		request();
+		exists = false;
+		size = 0;
+	}
+
+	@Override
+	protected void renameTo(final String newPath) throws IOException {
+		request();
+	}
+
+	@Override
+	protected String getName() {
+		return name;
+	}
+
+	@Override
+	protected String getBlobName() {
+		return name;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitChannel;
+
+/**
+ * Measures the per-file cost of the exit for transfers of many small files to
+ * Azure Storage: the path calls the agent makes for each destination file and
+ * writing the file's content through AzConnectWriteChannel.
+ *
+ * writeFiles moves the whole batch per invocation, so its score is the time
+ * for the batch (100,000 files of 1 KB by default). pathCalls scores a single
+ * path's metadata calls, without any content.
+ *
+ * Paths are built from their names as the agent builds them, so they go
+ * through the client cache in AzConnectIOUtil, AzConnectBlob's attribute cache
+ * and the Azure SDK, which sends its requests to AzConnectStorageServer over
+ * the loopback network.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AzConnectSmallFileBenchmark {
+	private static final String CONTAINER = "mftcontainer";
+	/** Blob read by pathCalls */
+	private static final String EXISTING_BLOB = "existing.dat";
+
+	/** Number of files in the batch */
+	@Param({"100000"})
+	public int files;
+
+	/** Size of each file */
+	@Param({"1024"})
+	public int fileSize;
+
+	/** azConnectWriteThreads */
+	@Param({"1", "4"})
+	public int threads;
+
+	/** azConnectTraceLevel, trace is written to a temporary file */
+	@Param({"off"})
+	public String traceLevel;
+
+	/** Delay added to each request to the storage */
+	@Param({"0"})
+	public long requestLatencyMicros;
+
+	private AzConnectStorageServer server;
+	private ByteBuffer content;
+	private String[] paths;
+	private String existingPath;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(AzConnectConstants.PROP_WRITE_THREADS, String.valueOf(threads));
+		properties.put(AzConnectConstants.PROP_TRACE_LEVEL, traceLevel);
+		File traceFile = File.createTempFile("azconnect", ".trace");
+		traceFile.deleteOnExit();
+		properties.put(AzConnectConstants.PROP_TRACE_FILE, traceFile.getPath());
+		properties.put(AzConnectConstants.PROP_TRACE_FORMAT, "text");
+		AzConnectTrace.setup(properties);
+		AzConnectIOUtil.getInstance().setProperties(properties);
+
+		server = new AzConnectStorageServer(requestLatencyMicros);
+		AzConnectIOUtil.getInstance().azStorageConnectionString = server.getConnectionString();
+		String containerPath = server.getContainerPath(CONTAINER);
+
+		content = ByteBuffer.allocate(fileSize);
+		paths = new String[files];
+		for(int i = 0; i < files; i++) {
+			paths[i] = containerPath + "batch/file" + i + ".dat";
+		}
+		existingPath = containerPath + EXISTING_BLOB;
+	}
+
+	/**
+	 * Starts each iteration with only the blob read by pathCalls, so that
+	 * writeFiles always creates new blobs.
+	 */
+	@Setup(Level.Iteration)
+	public void resetStorage() {
+		server.clear();
+		server.putBlob(CONTAINER, EXISTING_BLOB, new byte[fileSize]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long writeFiles(final Blackhole bh) throws IOException {
+		long total = 0;
+		for(int i = 0; i < files; i++) {
+			AzConnectIOResourcePath path = new AzConnectIOResourcePath(paths[i]);
+			bh.consume(path.exists());
+
+			IOExitChannel channel = path.openForWrite(false);
+			try {
+				content.clear();
+				total += channel.write(content);
+			} finally {
+				channel.close();
+			}
+			bh.consume(path.lastModified());
+		}
+		return total;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void pathCalls(final Blackhole bh) throws IOException {
+		AzConnectIOResourcePath path = new AzConnectIOResourcePath(existingPath);
+		bh.consume(path.getName());
+		bh.consume(path.getPath());
+		bh.consume(path.exists());
+		bh.consume(path.isFile());
+		bh.consume(path.isDirectory());
+		bh.consume(path.lastModified());
+		bh.consume(path.canRead());
+	}
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Azure Blob service, used by the benchmarks so
+ * that paths are built by AzConnectIOUtil and run through AzConnectBlob and
+ * the Azure SDK over HTTP, without an Azure account or storage emulator.
+ *
+ * Blobs are kept in memory. Only the requests the exit makes on block blobs
+ * are implemented: Get Blob Properties, Get Blob with a range, Put Blob, Put
+ * Block, Put Block List, Copy Blob and Delete Blob. Requests are not
+ * authenticated, and each can be delayed to stand in for the network.
+ */
+public class AzConnectStorageServer {
+	/** Account key of the storage emulator, accepted by the SDK but not checked here */
+	private static final String ACCOUNT_KEY = "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+	private static final String ACCOUNT_NAME = "devstoreaccount1";
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+	private static final Pattern BLOCK_LIST_ENTRY = Pattern.compile("<(Latest|Committed|Uncommitted)>([^<]*)</\\1>");
+
+	/** A block blob, guarded by its own lock */
+	private static class Blob {
+		byte[] data = null;
+		String etag = null;
+		long lastModified = 0;
+		String copyId = null;
+		/** Committed blocks by id, empty if the blob was uploaded in one request */
+		Map<String, byte[]> committedBlocks = new HashMap<String, byte[]>();
+		Map<String, byte[]> uncommittedBlocks = new HashMap<String, byte[]>();
+	}
+
+	/** Blobs by path, /account/container/name */
+	private final Map<String, Blob> blobs = new ConcurrentHashMap<String, Blob>();
+	private final AtomicLong etagCount = new AtomicLong(0);
+	private final AtomicLong requests = new AtomicLong(0);
+	private final long requestLatencyNanos;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * Starts the service on a free port of the loopback address.
+	 * @param requestLatencyMicros delay added to each request
+	 * @throws IOException
+	 */
+	public AzConnectStorageServer(final long requestLatencyMicros) throws IOException {
+		this.requestLatencyNanos = TimeUnit.MICROSECONDS.toNanos(requestLatencyMicros);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleRequest(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AzConnectStorageServer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Stops the service.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the connection string the exit uses for the service, to be set
+	 * in AzConnectIOUtil.azStorageConnectionString.
+	 * @return connection string without the BlobEndpoint
+	 */
+	public String getConnectionString() {
+		return "DefaultEndpointsProtocol=http;AccountName=" + ACCOUNT_NAME + ";AccountKey=" + ACCOUNT_KEY + ";";
+	}
+
+	/**
+	 * Returns the path of a container in the form the agent passes to the exit.
+	 * @param container container name
+	 * @return path ending with '/'
+	 */
+	public String getContainerPath(final String container) {
+		return "BlobEndpoint=http://127.0.0.1:" + server.getAddress().getPort() + "/" + ACCOUNT_NAME + "/" + container + "/";
+	}
+
+	/**
+	 * Creates or replaces a blob.
+	 * @param container container name
+	 * @param name blob name
+	 * @param data blob content
+	 */
+	public void putBlob(final String container, final String name, final byte[] data) {
+		Blob blob = getOrCreate("/" + ACCOUNT_NAME + "/" + container + "/" + name);
+		synchronized(blob) {
+			commit(blob, data.clone(), new HashMap<String, byte[]>());
+		}
+	}
+
+	/**
+	 * Removes all blobs.
+	 */
+	public void clear() {
+		blobs.clear();
+	}
+
+	/**
+	 * Returns the number of requests made to the service.
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	private Blob getOrCreate(final String path) {
+		Blob blob = blobs.get(path);
+		if(blob == null) {
+			Blob created = new Blob();
+			blob = blobs.putIfAbsent(path, created);
+			if(blob == null)
+				blob = created;
+		}
+		return blob;
+	}
+
+	private void commit(final Blob blob, final byte[] data, final Map<String, byte[]> committedBlocks) {
+		blob.data = data;
+		blob.committedBlocks = committedBlocks;
+		blob.uncommittedBlocks.clear();
+		blob.etag = "\"0x" + Long.toHexString(0x8D000000000000L + etagCount.incrementAndGet()) + "\"";
+		blob.lastModified = System.currentTimeMillis();
+		blob.copyId = null;
+	}
+
+	private void handleRequest(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		if(requestLatencyNanos > 0)
+			LockSupport.parkNanos(requestLatencyNanos);
+
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		final byte[] body = readBody(exchange.getRequestBody());
+		final Headers request = exchange.getRequestHeaders();
+
+		if(method.equals("HEAD") || method.equals("GET")) {
+			Blob blob = blobs.get(path);
+			if(blob == null) {
+				sendError(exchange, 404, "BlobNotFound");
+				return;
+			}
+			byte[] data;
+			synchronized(blob) {
+				if(blob.data == null) {
+					sendError(exchange, 404, "BlobNotFound");
+					return;
+				}
+				String ifMatch = request.getFirst("If-Match");
+				if(ifMatch != null && !ifMatch.equals(blob.etag)) {
+					sendError(exchange, 412, "ConditionNotMet");
+					return;
+				}
+				addProperties(exchange.getResponseHeaders(), blob);
+				data = blob.data;
+			}
+			if(method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			int start = 0;
+			int end = data.length;
+			int status = 200;
+			String range = request.getFirst("x-ms-range");
+			if(range == null)
+				range = request.getFirst("Range");
+			if(range != null) {
+				Matcher m = RANGE.matcher(range);
+				if(m.matches()) {
+					start = (int) Math.min(Long.parseLong(m.group(1)), data.length);
+					if(!m.group(2).isEmpty())
+						end = (int) Math.min(Long.parseLong(m.group(2)) + 1, data.length);
+					if(start >= data.length) {
+						sendError(exchange, 416, "InvalidRange");
+						return;
+					}
+					status = 206;
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + data.length);
+				}
+			}
+			sendBody(exchange, status, data, start, end - start);
+		} else if(method.equals("PUT")) {
+			Blob blob = getOrCreate(path);
+			synchronized(blob) {
+				String comp = query.get("comp");
+				String copySource = request.getFirst("x-ms-copy-source");
+				if("block".equals(comp)) {
+					blob.uncommittedBlocks.put(query.get("blockid"), body);
+					addRequestHeaders(exchange.getResponseHeaders());
+					exchange.sendResponseHeaders(201, -1);
+				} else if("blocklist".equals(comp)) {
+					putBlockList(exchange, blob, new String(body, StandardCharsets.UTF_8));
+				} else if(copySource != null) {
+					Blob source = blobs.get(URI.create(copySource).getPath());
+					byte[] data = null;
+					if(source != null) {
+						synchronized(source) {
+							data = source.data;
+						}
+					}
+					if(data == null) {
+						sendError(exchange, 404, "CannotVerifyCopySource");
+						return;
+					}
+					commit(blob, data, new HashMap<String, byte[]>());
+					blob.copyId = Long.toHexString(etagCount.get());
+					addProperties(exchange.getResponseHeaders(), blob);
+					exchange.sendResponseHeaders(202, -1);
+				} else if(comp == null) {
+					commit(blob, body, new HashMap<String, byte[]>());
+					addProperties(exchange.getResponseHeaders(), blob);
+					exchange.sendResponseHeaders(201, -1);
+				} else {
+					sendError(exchange, 400, "UnsupportedQueryParameter");
+				}
+			}
+		} else if(method.equals("DELETE")) {
+			Blob blob = blobs.remove(path);
+			if(blob == null) {
+				sendError(exchange, 404, "BlobNotFound");
+				return;
+			}
+			addRequestHeaders(exchange.getResponseHeaders());
+			exchange.sendResponseHeaders(202, -1);
+		} else {
+			sendError(exchange, 405, "UnsupportedHttpVerb");
+		}
+	}
+
+	/**
+	 * Commits the listed blocks. Blocks not in the list are discarded, as by
+	 * Azure Storage.
+	 */
+	private void putBlockList(final HttpExchange exchange, final Blob blob, final String blockList) throws IOException {
+		Map<String, byte[]> committed = new HashMap<String, byte[]>();
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		int length = 0;
+		Matcher m = BLOCK_LIST_ENTRY.matcher(blockList);
+		while(m.find()) {
+			String mode = m.group(1);
+			String id = m.group(2);
+			byte[] block = null;
+			if(!mode.equals("Committed"))
+				block = blob.uncommittedBlocks.get(id);
+			if(block == null && !mode.equals("Uncommitted"))
+				block = blob.committedBlocks.get(id);
+			if(block == null) {
+				sendError(exchange, 400, "InvalidBlockList");
+				return;
+			}
+			committed.put(id, block);
+			blocks.add(block);
+			length += block.length;
+		}
+
+		byte[] data = new byte[length];
+		int offset = 0;
+		for(byte[] block : blocks) {
+			System.arraycopy(block, 0, data, offset, block.length);
+			offset += block.length;
+		}
+		commit(blob, data, committed);
+		addProperties(exchange.getResponseHeaders(), blob);
+		exchange.sendResponseHeaders(201, -1);
+	}
+
+	private void addRequestHeaders(final Headers headers) {
+		headers.set("x-ms-request-id", Long.toString(requests.get()));
+		headers.set("x-ms-version", "2017-04-17");
+	}
+
+	private void addProperties(final Headers headers, final Blob blob) {
+		addRequestHeaders(headers);
+		headers.set("ETag", blob.etag);
+		headers.set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(blob.lastModified)));
+		headers.set("x-ms-blob-type", "BlockBlob");
+		// Content-Length of a HEAD response is replaced by the HTTP server
+		headers.set("x-ms-blob-content-length", Integer.toString(blob.data.length));
+		headers.set("Accept-Ranges", "bytes");
+		if(blob.copyId != null) {
+			headers.set("x-ms-copy-id", blob.copyId);
+			headers.set("x-ms-copy-status", "success");
+		}
+	}
+
+	private void sendError(final HttpExchange exchange, final int status, final String code) throws IOException {
+		addRequestHeaders(exchange.getResponseHeaders());
+		exchange.getResponseHeaders().set("x-ms-error-code", code);
+		if(exchange.getRequestMethod().equals("HEAD")) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] error = ("<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>" + code
+				+ "</Code><Message>" + code + "</Message></Error>").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		sendBody(exchange, status, error, 0, error.length);
+	}
+
+	private static void sendBody(final HttpExchange exchange, final int status, final byte[] data, final int offset,
+			final int length) throws IOException {
+		exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+		if(length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(data, offset, length);
+			out.close();
+		}
+	}
+
+	private static byte[] readBody(final InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> parseQuery(final String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if(query != null) {
+			for(String param : query.split("&")) {
+				int eq = param.indexOf('=');
+				if(eq > 0)
+					params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+}
@@ -15,27 +15,105 @@
  */
 package mft.azconnect;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.BlobInputStream;
 import com.microsoft.azure.storage.blob.BlobOutputStream;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlobDirectory;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.CopyState;
 
 public class AzConnectBlob extends AzConnectStorage {
 	CloudBlockBlob blockBlob;
+	/** Time the blob properties were last fetched, 0 if they need fetching */
+	private long attributesFetchedTime = 0;
+	/** Whether the blob existed when the properties were last fetched */
+	private boolean blobExists = false;
+	/** How long fetched properties are used before being fetched again */
+	private final long attributesTtl;
+	/**
+	 * Blob that blocks written to this blob are staged on. Set for temporary
+	 * blobs so that renaming them commits the blocks to the final blob without
+	 * a copy.
+	 */
+	private AzConnectBlob commitTarget = null;
+	/** Blocks staged on the commit target waiting for the rename */
+	private List<String> pendingBlockIds = null;
+	/** Number of bytes in the staged blocks */
+	private long stagedBytes = 0;
+	/** Time the staged blocks were closed */
+	private long pendingTime = 0;
+
 	public AzConnectBlob(int type, CloudBlockBlob blockBlob) {
+		this(type, blockBlob, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param type storage type
+	 * @param blockBlob blob reference
+	 * @param attributesLoaded true if the properties of blockBlob are already
+	 *        populated, for example by a container listing
+	 */
+	public AzConnectBlob(int type, CloudBlockBlob blockBlob, boolean attributesLoaded) {
 		super(type);
 		final String fid = "<init>";
-		AzConnectTrace.entry(this, fid, type, blockBlob);
+		AzConnectTrace.entry(this, fid, type, blockBlob, attributesLoaded);
 
 		this.blockBlob = blockBlob;
+		this.attributesTtl = AzConnectIOUtil.getInstance().getNonNegativeIntProperty(AzConnectConstants.PROP_ATTRIBUTE_CACHE_TTL,
+				AzConnectConstants.DEFAULT_ATTRIBUTE_CACHE_TTL);
+		if(attributesLoaded) {
+			blobExists = true;
+			attributesFetchedTime = System.currentTimeMillis();
+		}
 		
 		AzConnectTrace.exit(this, fid);
 	}
 
+	/**
+	 * Fetches the blob properties unless they were fetched within the cache TTL.
+	 * A TTL of 0 fetches them every time.
+	 * @throws StorageException
+	 */
+	private synchronized void refreshAttributes() throws StorageException {
+		if(attributesTtl == 0 || attributesFetchedTime == 0 || System.currentTimeMillis() - attributesFetchedTime > attributesTtl)
+			fetchAttributes();
+	}
+
+	@Override
+	protected synchronized void invalidateAttributes() {
+		attributesFetchedTime = 0;
+	}
+
+	/**
+	 * Stages blocks written to this blob on the given blob instead, and defers
+	 * committing them until this blob is renamed to the target.
+	 * @param target final blob, in the same container
+	 */
+	protected synchronized void deferCommitTo(final AzConnectBlob target) {
+		this.commitTarget = target;
+	}
+
+	@Override
+	protected synchronized boolean isCommitDeferred() {
+		return commitTarget != null;
+	}
+
 	@Override
 	public CloudBlobDirectory getParent() {
 		final String fid = "getParent";
@@ -55,10 +133,34 @@ public class AzConnectBlob extends AzConnectStorage {
 		return parent;
 	}
 	
+	@Override
+	protected CloudBlobContainer getContainer() {
+		final String fid = "getContainer";
+		CloudBlobContainer container = null;
+		
+		try {
+			container = blockBlob.getContainer();
+		} catch (URISyntaxException ex) {
+			AzConnectTrace.data(this, fid, ex);
+		} catch (StorageException ex) {
+			AzConnectTrace.data(this, fid, ex);
+		}
+		return container;
+	}
+	
 	@Override
 	protected void delete() throws StorageException {
 		final String fid = "delete";
 		AzConnectTrace.entry(this, fid);
+		invalidateAttributes();
+		synchronized(this) {
+			if(pendingBlockIds != null) {
+				// Nothing was committed. Azure Storage discards uncommitted blocks by itself.
+				pendingBlockIds = null;
+				AzConnectTrace.exit(this, fid);
+				return;
+			}
+		}
 		blockBlob.delete();
 		AzConnectTrace.exit(this, fid);
 	}
@@ -68,17 +170,36 @@ public class AzConnectBlob extends AzConnectStorage {
 		final String fid = "exists";
 		boolean val = false;
 		AzConnectTrace.entry(this, fid);
-		val = blockBlob.exists();
+		synchronized(this) {
+			if(pendingBlockIds != null) {
+				val = true;
+			} else {
+				refreshAttributes();
+				val = blobExists;
+			}
+		}
 		AzConnectTrace.exit(this, fid, val);
 		return val;
 	}
 	
 	@Override
 	protected long getLastModifiedTime() {
-		final String fid = "exists";
+		final String fid = "getLastModifiedTime";
 		long val = 0;
 		AzConnectTrace.entry(this, fid);
-		val = blockBlob.getProperties().getLastModified().getTime();
+		try {
+			synchronized(this) {
+				if(pendingBlockIds != null) {
+					val = pendingTime;
+				} else {
+					refreshAttributes();
+					if(blobExists && blockBlob.getProperties().getLastModified() != null)
+						val = blockBlob.getProperties().getLastModified().getTime();
+				}
+			}
+		} catch (StorageException ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+		}
 		AzConnectTrace.exit(this, fid, val);
 		return val;
 	}
@@ -88,6 +209,7 @@ public class AzConnectBlob extends AzConnectStorage {
 		final String fid = "openOutputStream";
 		BlobOutputStream os = null;
 		AzConnectTrace.entry(this, fid);
+		invalidateAttributes();
 		os = blockBlob.openOutputStream();
 		AzConnectTrace.exit(this, fid, os);
 		return os;
@@ -109,11 +231,97 @@ public class AzConnectBlob extends AzConnectStorage {
 		final String fid = "getSize";
 		long size = 0;
 		AzConnectTrace.entry(this, fid);
-		size = blockBlob.getProperties().getLength();		
+		try {
+			synchronized(this) {
+				if(pendingBlockIds != null) {
+					size = stagedBytes;
+				} else {
+					refreshAttributes();
+					if(blobExists)
+						size = blockBlob.getProperties().getLength();
+				}
+			}
+		} catch (StorageException ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+		}
 		AzConnectTrace.exit(this, fid, size);
 		return size;
 	}
 	
+	@Override
+	protected void fetchAttributes() throws StorageException {
+		final String fid = "fetchAttributes";
+		AzConnectTrace.entry(this, fid);
+		synchronized(this) {
+			try {
+				blockBlob.downloadAttributes();
+				blobExists = true;
+			} catch (StorageException ex) {
+				if(ex.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+					throw ex;
+				blobExists = false;
+			}
+			attributesFetchedTime = System.currentTimeMillis();
+		}
+		AzConnectTrace.exit(this, fid, blobExists);
+	}
+
+	@Override
+	protected synchronized String getETag() {
+		return blobExists ? blockBlob.getProperties().getEtag() : null;
+	}
+
+	@Override
+	protected int downloadRange(final long offset, final long length, final byte[] buffer, final int bufferOffset,
+			final String etag) throws StorageException {
+		final String fid = "downloadRange";
+		int bytesRead = 0;
+		AzConnectTrace.entry(this, fid, offset, length, etag);
+		// Fails with 412 Precondition Failed if the blob has changed since the ETag was read
+		AccessCondition condition = (etag != null) ? AccessCondition.generateIfMatchCondition(etag) : null;
+		bytesRead = blockBlob.downloadRangeToByteArray(offset, length, buffer, bufferOffset, condition, null, null);
+		AzConnectTrace.exit(this, fid, bytesRead);
+		return bytesRead;
+	}
+
+	@Override
+	protected void uploadBlock(final String blockId, final byte[] data, final int length) throws StorageException, IOException {
+		final String fid = "uploadBlock";
+		AzConnectTrace.entry(this, fid, blockId, length);
+		CloudBlockBlob uploadBlob = blockBlob;
+		synchronized(this) {
+			if(commitTarget != null) {
+				uploadBlob = commitTarget.blockBlob;
+				stagedBytes += length;
+			}
+		}
+		uploadBlob.uploadBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+		AzConnectTrace.exit(this, fid);
+	}
+
+	@Override
+	protected void commitBlockList(final List<String> blockIds) throws StorageException {
+		final String fid = "commitBlockList";
+		AzConnectTrace.entry(this, fid, blockIds.size());
+		synchronized(this) {
+			if(commitTarget != null) {
+				// Blocks are on the final blob, commit them when renamed
+				pendingBlockIds = new ArrayList<String>(blockIds);
+				pendingTime = System.currentTimeMillis();
+				AzConnectTrace.exit(this, fid, "deferred");
+				return;
+			}
+		}
+		List<BlockEntry> blockList = new ArrayList<BlockEntry>(blockIds.size());
+		// Only the blocks this writer uploaded, never a committed block with the same id
+		for(String blockId : blockIds) {
+			blockList.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+		}
+		invalidateAttributes();
+		blockBlob.commitBlockList(blockList);
+		AzConnectTrace.exit(this, fid);
+	}
+
 	@Override
 	protected String getName() {
 		final String fid = "getName";
@@ -136,43 +344,76 @@ public class AzConnectBlob extends AzConnectStorage {
 		return blobName;
 	}
 	
+	/**
+	 * Renames the blob. If the blocks of this blob were staged on a blob of
+	 * the new name, they are committed there and no copy is needed. Otherwise
+	 * the blob is copied on the server to the new name and then deleted.
+	 * @param newPath name of the new blob in the same container
+	 */
 	@Override
-	protected void renameTo(final String newPath) {
+	protected void renameTo(final String newPath) throws IOException {
 		final String fid = "renameTo";
 		
 		AzConnectTrace.entry(this, fid, newPath);
+		invalidateAttributes();
 		try {
-			CloudBlobDirectory	parent = blockBlob.getParent();
-			CloudBlockBlob newBlob = parent.getBlockBlobReference(newPath);
-			
-			AzConnectTrace.data(this, fid, "Initiate an asynchronous operation to create copy the .part blob.");
-			
-			newBlob.startCopy(blockBlob.getUri());
-			
-		    //Now wait in the loop for the copy operation to finish
-		    while (true)
-		    {
-		        //newBlob..FetchAttributes();
-		        if (newBlob.getCopyState().getStatus() != CopyStatus.PENDING)
-		        {
-		            break;
-		        }
-		        
-		        //Sleep for a second may be and check the state again 
-		        try {
-					Thread.sleep(1000);
-				} catch (InterruptedException ex) {
+			List<String> stagedBlocks = null;
+			synchronized(this) {
+				stagedBlocks = pendingBlockIds;
+			}
+
+			if(stagedBlocks != null) {
+				if(!commitTarget.getBlobName().equals(newPath)) {
+					IOException ex = new IOException("Blocks of " + getBlobName() + " are staged on "
+							+ commitTarget.getBlobName() + " and can not be renamed to " + newPath);
 					AzConnectTrace.throwing(this, fid, ex);
+					throw ex;
+				}
+				AzConnectTrace.data(this, fid, "Commit staged blocks to the final blob");
+				commitTarget.commitBlockList(stagedBlocks);
+				synchronized(this) {
+					pendingBlockIds = null;
 				}
-		    }
-		    
-		    // Delete the .part blob.
-		    blockBlob.delete();
-		} catch (URISyntaxException e) {
-			AzConnectTrace.throwing(this, fid, e);
-		} catch (StorageException e) {
-			AzConnectTrace.throwing(this, fid, e);
+			} else {
+				copyTo(newPath);
+			}
+		} catch (IOException ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+			throw ex;
+		} catch (Exception ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+			throw new IOException(ex);
 		}
 		AzConnectTrace.exit(this, fid);
 	}
+
+	/**
+	 * Copies this blob to a new blob in the same container and deletes this blob
+	 * once the copy has finished.
+	 * @param newPath name of the new blob
+	 * @throws Exception
+	 */
+	private void copyTo(final String newPath) throws Exception {
+		final String fid = "copyTo";
+		final long timeout = AzConnectIOUtil.getInstance().getIntProperty(AzConnectConstants.PROP_RENAME_TIMEOUT,
+				AzConnectConstants.DEFAULT_RENAME_TIMEOUT);
+
+		CloudBlockBlob newBlob = blockBlob.getContainer().getBlockBlobReference(newPath);
+		AzConnectTrace.data(this, fid, "Initiate an asynchronous operation to copy the .part blob.");
+		String copyId = newBlob.startCopy(blockBlob);
+
+		CompletableFuture<CopyState> copyDone = AzConnectCopyMonitor.monitor(newBlob);
+		try {
+			copyDone.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			copyDone.cancel(false);
+			newBlob.abortCopy(copyId);
+			throw new IOException("Copy to " + newPath + " did not complete in " + timeout + " ms", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		}
+
+		// Delete the .part blob.
+		blockBlob.delete();
+	}
 }
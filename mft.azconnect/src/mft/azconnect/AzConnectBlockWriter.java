@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a blob as a list of blocks. Data written by the agent is collected
+ * into blocks of a fixed size, each full block is uploaded as an uncommitted
+ * block by a pool of threads and the block list is committed when the writer
+ * is closed.
+ */
+public class AzConnectBlockWriter {
+	/** Azure Storage limit on the number of blocks in a blob */
+	private static final int MAX_BLOCKS = 50000;
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private final AzConnectStorage blockBlob;
+	private final int blockSize;
+	private final ExecutorService executor;
+	/** Limits the number of blocks held in memory waiting for upload */
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	/**
+	 * Random prefix of this writer's block ids. Blocks may be staged on a blob
+	 * that other transfers are writing too, so the ids must not be the same as
+	 * theirs. All ids have the same length, as Azure Storage requires.
+	 */
+	private final String blockIdPrefix = UUID.randomUUID().toString() + "-";
+	/** Block ids in the order the blocks appear in the blob */
+	private final List<String> blockIds = new ArrayList<String>();
+	/** First upload failure, reported back on the next call from the agent */
+	private volatile Exception uploadFailure = null;
+
+	private byte[] currentBlock = null;
+	private int currentLength = 0;
+
+	/**
+	 * Constructor
+	 * @param blockBlob blob to upload
+	 * @param threads number of blocks uploaded at the same time
+	 * @param blockSize size of each block
+	 */
+	public AzConnectBlockWriter(final AzConnectStorage blockBlob, final int threads, final int blockSize) {
+		final String fid = "<init>";
+		AzConnectTrace.entry(this, fid, blockBlob, threads, blockSize);
+
+		this.blockBlob = blockBlob;
+		this.blockSize = blockSize;
+		this.maxInFlight = threads * 2;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AzConnectBlockWriter-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		AzConnectTrace.exit(this, fid);
+	}
+
+	/**
+	 * Copies the given buffer into blocks, uploading each block as it fills.
+	 * @param buffer data to write
+	 * @return number of bytes consumed from the buffer
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer buffer) throws IOException {
+		checkFailure();
+
+		int bytesWritten = 0;
+		while(buffer.hasRemaining()) {
+			if(currentBlock == null) {
+				currentBlock = AzConnectBufferPool.acquire(blockSize);
+				currentLength = 0;
+			}
+
+			int length = Math.min(buffer.remaining(), blockSize - currentLength);
+			buffer.get(currentBlock, currentLength, length);
+			currentLength += length;
+			bytesWritten += length;
+
+			if(currentLength == blockSize)
+				submitCurrentBlock();
+		}
+		return bytesWritten;
+	}
+
+	/**
+	 * Hands the current block to the upload threads. Blocks if the maximum
+	 * number of blocks are already waiting for upload.
+	 * @throws IOException
+	 */
+	private void submitCurrentBlock() throws IOException {
+		final String fid = "submitCurrentBlock";
+
+		if(blockIds.size() >= MAX_BLOCKS) {
+			IOException ex = new IOException("Blob exceeds " + MAX_BLOCKS + " blocks of " + blockSize + " bytes");
+			AzConnectTrace.throwing(this, fid, ex);
+			throw ex;
+		}
+
+		final byte[] block = currentBlock;
+		final int length = currentLength;
+		final String blockId = Base64.getEncoder().encodeToString(
+				(blockIdPrefix + String.format("%06d", blockIds.size())).getBytes(StandardCharsets.US_ASCII));
+		blockIds.add(blockId);
+		currentBlock = null;
+		currentLength = 0;
+
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			AzConnectBufferPool.release(block);
+			AzConnectTrace.throwing(this, fid, ex);
+			throw new IOException(ex);
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(uploadFailure == null)
+						blockBlob.uploadBlock(blockId, block, length);
+				} catch (Exception ex) {
+					AzConnectTrace.throwing(this, "uploadBlock", ex);
+					if(uploadFailure == null)
+						uploadFailure = ex;
+				} finally {
+					AzConnectBufferPool.release(block);
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for all blocks handed to the upload threads to be uploaded.
+	 * @throws IOException if any block failed to upload
+	 */
+	public void waitForUploads() throws IOException {
+		final String fid = "waitForUploads";
+		try {
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			AzConnectTrace.throwing(this, fid, ex);
+			throw new IOException(ex);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Uploads any partial block, waits for all uploads and commits the block list.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		final String fid = "close";
+		AzConnectTrace.entry(this, fid, blockIds.size());
+
+		try {
+			if(currentLength > 0)
+				submitCurrentBlock();
+			waitForUploads();
+			blockBlob.commitBlockList(blockIds);
+		} catch (IOException ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+			throw ex;
+		} catch (Exception ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+			throw new IOException(ex);
+		} finally {
+			AzConnectBufferPool.release(currentBlock);
+			currentBlock = null;
+			executor.shutdown();
+		}
+		AzConnectTrace.exit(this, fid);
+	}
+
+	/**
+	 * Throws the first upload failure, if any.
+	 * @throws IOException
+	 */
+	private void checkFailure() throws IOException {
+		Exception ex = uploadFailure;
+		if(ex != null)
+			throw new IOException("Block upload failed", ex);
+	}
+}
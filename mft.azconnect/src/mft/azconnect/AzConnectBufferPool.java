@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small process wide pool of byte arrays used by the read and write channels
+ * as scratch space. Agent transfers use the same chunk size over and over, so
+ * returning arrays to the pool avoids allocating a new array for every chunk.
+ */
+public class AzConnectBufferPool {
+	/** Maximum number of bytes held by the pool */
+	private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicLong pooledBytes = new AtomicLong(0);
+
+	private AzConnectBufferPool() {
+	}
+
+	/**
+	 * Returns an array of at least the given size. A pooled array is returned
+	 * if one big enough is available, otherwise a new array is allocated.
+	 * @param minSize minimum size of the array
+	 * @return byte array
+	 */
+	public static byte[] acquire(final int minSize) {
+		Iterator<byte[]> it = pool.iterator();
+		while(it.hasNext()) {
+			byte[] buffer = it.next();
+			if(buffer.length >= minSize && pool.remove(buffer)) {
+				pooledBytes.addAndGet(-buffer.length);
+				return buffer;
+			}
+		}
+		return new byte[minSize];
+	}
+
+	/**
+	 * Returns the given array to the pool. The array is dropped if the pool is full.
+	 * @param buffer array to return, may be null
+	 */
+	public static void release(final byte[] buffer) {
+		if(buffer == null)
+			return;
+
+		if(pooledBytes.addAndGet(buffer.length) <= MAX_POOLED_BYTES) {
+			pool.offer(buffer);
+		} else {
+			pooledBytes.addAndGet(-buffer.length);
+		}
+	}
+}
@@ -19,4 +19,49 @@ public class AzConnectConstants {
 
 	public static int AZ_CONNECT_STORAGE_BLOB = 0;
 	public static int AZ_CONNECT_STORAGE_CONTAINER = 1;
+
+	/** Number of ranges of a blob downloaded in parallel. 1 reads the blob sequentially. */
+	public static final String PROP_READ_THREADS = "azConnectReadThreads";
+	/** Size in bytes of each range downloaded by a parallel read */
+	public static final String PROP_READ_RANGE_SIZE = "azConnectReadRangeSize";
+	/** Number of ranges fetched ahead of the agent by a parallel read */
+	public static final String PROP_READ_PREFETCH = "azConnectReadPrefetch";
+
+	/** Number of blocks of a blob uploaded in parallel. 1 writes the blob through a single stream. */
+	public static final String PROP_WRITE_THREADS = "azConnectWriteThreads";
+	/** Size in bytes of each block uploaded by a parallel write */
+	public static final String PROP_WRITE_BLOCK_SIZE = "azConnectWriteBlockSize";
+	/** Number of blob clients and container references kept for reuse */
+	public static final String PROP_CLIENT_CACHE_SIZE = "azConnectClientCacheSize";
+	/** Number of blobs fetched by each request when listing a container */
+	public static final String PROP_LIST_PAGE_SIZE = "azConnectListPageSize";
+	/** Milliseconds that fetched blob properties (exists, size, last modified) are reused */
+	public static final String PROP_ATTRIBUTE_CACHE_TTL = "azConnectAttributeCacheTtl";
+	/** Milliseconds to wait for the server side copy made when renaming a blob */
+	public static final String PROP_RENAME_TIMEOUT = "azConnectRenameTimeout";
+	/** Stage blocks of temporary blobs on the final blob and commit them on rename, true or false */
+	public static final String PROP_DEFERRED_COMMIT = "azConnectDeferredCommit";
+	/** Trace level: off, error or all */
+	public static final String PROP_TRACE_LEVEL = "azConnectTraceLevel";
+	/** Trace file name */
+	public static final String PROP_TRACE_FILE = "azConnectTraceFile";
+	/** Trace file format: html or text */
+	public static final String PROP_TRACE_FORMAT = "azConnectTraceFormat";
+	/** Number of trace records buffered before records are dropped */
+	public static final String PROP_TRACE_BUFFER_SIZE = "azConnectTraceBufferSize";
+
+	public static final int DEFAULT_READ_THREADS = 1;
+	public static final int DEFAULT_READ_RANGE_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_READ_PREFETCH = 8;
+	public static final int DEFAULT_WRITE_THREADS = 1;
+	public static final int DEFAULT_WRITE_BLOCK_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_CLIENT_CACHE_SIZE = 64;
+	public static final int DEFAULT_LIST_PAGE_SIZE = 5000;
+	public static final int DEFAULT_ATTRIBUTE_CACHE_TTL = 30000;
+	public static final int DEFAULT_RENAME_TIMEOUT = 600000;
+	public static final boolean DEFAULT_DEFERRED_COMMIT = false;
+	public static final String DEFAULT_TRACE_LEVEL = "off";
+	public static final String DEFAULT_TRACE_FILE = "Logging.html";
+	public static final String DEFAULT_TRACE_FORMAT = "html";
+	public static final int DEFAULT_TRACE_BUFFER_SIZE = 65536;
 }
@@ -21,15 +21,27 @@ import com.microsoft.azure.storage.blob.CloudBlobDirectory;
 
 public class AzConnectContainer extends AzConnectStorage {
 	CloudBlobContainer blobContainer;
+	/** Virtual directory within the container, null for the whole container */
+	String prefix;
 	
 	public AzConnectContainer(int type, CloudBlobContainer container) {
+		this(type, container, null);
+	}
+	
+	public AzConnectContainer(int type, CloudBlobContainer container, String prefix) {
 		super(type);
 		final String fid = "<init>";
 		
-		AzConnectTrace.entry(this, fid, type, container);
+		AzConnectTrace.entry(this, fid, type, container, prefix);
 		this.blobContainer = container;
+		this.prefix = prefix;
 		AzConnectTrace.exit(this, fid);
 	}
+	
+	@Override
+	protected String getPrefix() {
+		return prefix;
+	}
 
 	@Override
 	public CloudBlobDirectory getParent() {
@@ -42,11 +54,18 @@ public class AzConnectContainer extends AzConnectStorage {
 		return parent;
 	}
 	
+	@Override
+	protected CloudBlobContainer getContainer() {
+		return blobContainer;
+	}
+	
 	@Override
 	protected void delete() throws StorageException {
 		final String fid = "delete";
 		AzConnectTrace.entry(this, fid);
-		blobContainer.deleteIfExists();
+		// A virtual directory only exists through its blobs, never delete the container for it
+		if(prefix == null)
+			blobContainer.deleteIfExists();
 		AzConnectTrace.exit(this, fid);
 	}
 	
@@ -90,6 +109,8 @@ public class AzConnectContainer extends AzConnectStorage {
 		String name = null;
 		AzConnectTrace.entry(this, fid);
 		name = blobContainer.getUri().toASCIIString();
+		if(prefix != null)
+			name += "/" + prefix.substring(0, prefix.length() - 1);
 		AzConnectTrace.exit(this, fid, name);
 		return name;
 	}
@@ -99,7 +120,7 @@ public class AzConnectContainer extends AzConnectStorage {
 		final String fid = "getBlobName";
 		String blobName = null;
 		AzConnectTrace.entry(this, fid);
-		blobName = blobContainer.getName();
+		blobName = (prefix != null) ? prefix.substring(0, prefix.length() - 1) : blobContainer.getName();
 		AzConnectTrace.exit(this, fid, blobName);
 		return blobName;
 	}
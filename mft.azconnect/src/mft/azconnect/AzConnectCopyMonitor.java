@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+
+/**
+ * Watches server side blob copies until they finish. A single thread polls all
+ * pending copies, refreshing the target blob's properties each time and backing
+ * off exponentially while the copy is still pending.
+ */
+public class AzConnectCopyMonitor {
+	/** First delay before checking a pending copy */
+	private static final long INITIAL_DELAY_MS = 50;
+	/** Longest delay between two checks of a pending copy */
+	private static final long MAX_DELAY_MS = 2000;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "AzConnectCopyMonitor");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private AzConnectCopyMonitor() {
+	}
+
+	/**
+	 * Returns a future that completes when the copy into the given blob finishes.
+	 * The future completes exceptionally if the copy fails or is aborted.
+	 * @param target blob the copy is writing to, after startCopy has been called
+	 * @return completion future
+	 */
+	public static CompletableFuture<CopyState> monitor(final CloudBlockBlob target) {
+		final CompletableFuture<CopyState> future = new CompletableFuture<CopyState>();
+
+		// Copies within an account usually complete before startCopy returns
+		if(!checkCopyState(target, future))
+			schedule(target, future, INITIAL_DELAY_MS);
+		return future;
+	}
+
+	/**
+	 * Schedules the next check of a pending copy.
+	 */
+	private static void schedule(final CloudBlockBlob target, final CompletableFuture<CopyState> future, final long delay) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(future.isDone())
+					return;
+
+				try {
+					target.downloadAttributes();
+				} catch (Exception ex) {
+					AzConnectTrace.throwing(this, "monitor", ex);
+					future.completeExceptionally(ex);
+					return;
+				}
+
+				if(!checkCopyState(target, future))
+					schedule(target, future, Math.min(delay * 2, MAX_DELAY_MS));
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Completes the future if the copy has finished.
+	 * @return true if the copy has finished, false if it is still pending
+	 */
+	private static boolean checkCopyState(final CloudBlockBlob target, final CompletableFuture<CopyState> future) {
+		CopyState state = target.getCopyState();
+
+		if(state == null || state.getStatus() == CopyStatus.SUCCESS) {
+			future.complete(state);
+		} else if(state.getStatus() == CopyStatus.PENDING) {
+			return false;
+		} else {
+			future.completeExceptionally(new IOException("Copy to " + target.getName() + " ended with status "
+					+ state.getStatus() + " " + state.getStatusDescription()));
+		}
+		return true;
+	}
+}
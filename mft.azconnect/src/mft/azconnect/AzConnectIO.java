@@ -67,11 +67,34 @@ import com.ibm.wmqfte.exitroutine.api.IOExitRecordResourcePath.RecordFormat;
  *  3) Add the following to agent.properties file
  *   IOExitClasses=com.ibm.wmqfte.azconnect.AzConnectIO
  *  4) Stop and start the agent.
- *  
+ *
+ *  Optional agent.properties for tuning the exit:
+ *   azConnectReadThreads=4        Download blobs as ranges using 4 threads. Default 1, read sequentially.
+ *   azConnectReadRangeSize=4194304 Size in bytes of each range. Blobs smaller than this are read sequentially.
+ *   azConnectReadPrefetch=8       Number of ranges downloaded ahead of the agent.
+ *   azConnectWriteThreads=4       Upload blobs as blocks using 4 threads. Default 1, write through a single stream.
+ *   azConnectWriteBlockSize=4194304 Size in bytes of each uploaded block.
+ *   azConnectClientCacheSize=64   Number of storage accounts and containers whose connections are reused.
+ *   azConnectListPageSize=5000    Number of blobs fetched by each request when listing a container.
+ *   azConnectAttributeCacheTtl=30000 Milliseconds that a blob's size, last modified time and existence are reused.
+ *                                 0 fetches them from the storage on every request.
+ *   azConnectDeferredCommit=true  Upload temporary (.part) blobs as blocks of the final blob and commit them
+ *                                 when renamed, instead of copying the temporary blob. Default false.
+ *                                 The .part blob is then never created, so a transfer cannot be recovered
+ *                                 after an agent restart, and only one transfer may write a blob at a time:
+ *                                 committing one discards the blocks staged by any other.
+ *   azConnectRenameTimeout=600000 Milliseconds to wait for the server side copy when a blob is renamed.
+ *   azConnectTraceLevel=all       Write trace: off, error (exceptions only) or all. Default off.
+ *   azConnectTraceFile=Logging.html Trace file, relative to the agent's working directory.
+ *   azConnectTraceFormat=html     Trace file format: html or text (one line per trace point).
+ *   azConnectTraceBufferSize=65536 Trace records buffered for the trace thread. Records are dropped when full.
+ *
  *  How to test:
  *  1) Create a container in Azure Blob Storage, say with a name "mftcontainer".
  *  2) Submit a transfer request. The following command was run against Azure Storage Emulator running on local machine.
  *  fteCreateTransfer -rt -1 -sa SRC -sm SRCAGQM -da AZURE_STRG -dm AZQM -de overwrite -df "BlobEndpoint=http://127.0.0.1:10000/devstoreaccount1/mftcontainer/azfile.txt" "C:\SRC\azfile.txt"
+ *  A path ending with '/', for example "BlobEndpoint=http://127.0.0.1:10000/devstoreaccount1/mftcontainer/reports/",
+ *  refers to the virtual directory "reports" in the container.
  *  
  *  Current restrictions:
  *  1) The IOExit does not have the capability to resume transfers. So transfers fail
@@ -89,7 +112,7 @@ public class AzConnectIO implements IOExit {
 		
 		boolean retValue = false;
 		try {
-			AzConnectTrace.setup();
+			AzConnectTrace.setup(properties);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -98,7 +121,7 @@ public class AzConnectIO implements IOExit {
 
 		try {
 		    // Initialize a singleton connection to Azure Storage
-			AzConnectIOUtil.getInstance();
+			AzConnectIOUtil.getInstance().setProperties(properties);
 		    retValue = true;			
 		}catch (Exception ex) {
 			AzConnectTrace.throwing(this, fid, ex);
@@ -74,6 +74,17 @@ public class AzConnectIOResourcePath implements IOExitResourcePath {
 		AzConnectTrace.exit(this, fid);
 	}
 
+	/**
+	 * Constructor for a path whose storage object is already known, for example
+	 * a blob returned by a container listing. No request is made to Azure Storage.
+	 * @param newBlobPath
+	 * @param storage
+	 */
+	AzConnectIOResourcePath(final String newBlobPath, final AzConnectStorage storage) {
+		this.blobPath = newBlobPath;
+		this.blockStorage = storage;
+	}
+
 	/**
 	 * Just the name of the Blob without URI prefix
 	 */
@@ -121,8 +132,11 @@ public class AzConnectIOResourcePath implements IOExitResourcePath {
 	public IOExitResourcePath[] listPaths() {
 		final String fid = "listPaths";
 		AzConnectTrace.entry(this, fid);
+		IOExitResourcePath[] paths = null;
+		if(blockStorage != null)
+			paths = AzConnectIOUtil.getInstance().listContainerBlobs(blockStorage.getContainer(), blockStorage.getPrefix());
 		AzConnectTrace.exit(this, fid);
-		return AzConnectIOUtil.getInstance().listContainerBlobs();
+		return paths;
 	}
 
 	@Override
@@ -162,6 +176,12 @@ public class AzConnectIOResourcePath implements IOExitResourcePath {
 		AzConnectTrace.entry(this, fid, tempPath);
 		try {
 			azTempPath = new AzConnectIOResourcePath(blobPath + tempPath);
+			
+			// Stage the temporary blob's blocks on this blob so the final rename needs no copy
+			if(blockStorage instanceof AzConnectBlob && azTempPath.blockStorage instanceof AzConnectBlob
+					&& AzConnectIOUtil.getInstance().getBooleanProperty(AzConnectConstants.PROP_DEFERRED_COMMIT, AzConnectConstants.DEFAULT_DEFERRED_COMMIT)) {
+				((AzConnectBlob) azTempPath.blockStorage).deferCommitTo((AzConnectBlob) blockStorage);
+			}
 		}catch (Exception ex) {
 			AzConnectTrace.throwing(this, fid, ex);
 			throw new IOException(ex);
@@ -287,7 +307,7 @@ public class AzConnectIOResourcePath implements IOExitResourcePath {
 		
 		AzConnectTrace.entry(this, fid, newPathVal);
 		if(blockStorage.getType() == AzConnectConstants.AZ_CONNECT_STORAGE_CONTAINER)
-			newPathVal = blockStorage.getName() + "/" + newPathVal;
+			newPathVal = (blobPath.endsWith("/") ? blobPath : blobPath + "/") + newPathVal;
 
 		try {
 			azNewPath = new AzConnectIOResourcePath(newPathVal);
@@ -338,8 +358,15 @@ public class AzConnectIOResourcePath implements IOExitResourcePath {
 		AzConnectTrace.entry(this, fid, newPath.getName());
 		try {
 			blockStorage.renameTo(newPath.getName());
+			// The target now exists, drop anything cached about it before the rename
+			if(newPath instanceof AzConnectIOResourcePath && ((AzConnectIOResourcePath) newPath).blockStorage != null)
+				((AzConnectIOResourcePath) newPath).blockStorage.invalidateAttributes();
+		}catch(IOException ex) {
+			AzConnectTrace.throwing(this, fid, ex);
+			throw ex;
 		}catch(Exception ex) {
 			AzConnectTrace.throwing(this, fid, ex);
+			throw new IOException(ex);
 		}
 		AzConnectTrace.exit(this, fid);
 	}
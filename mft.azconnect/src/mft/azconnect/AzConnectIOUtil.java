@@ -16,10 +16,17 @@
 package mft.azconnect;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.ibm.wmqfte.exitroutine.api.IOExitResourcePath;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
@@ -30,7 +37,31 @@ public class AzConnectIOUtil {
 
 	private static AzConnectIOUtil singletonConnection = new AzConnectIOUtil();
 
-	private CloudBlobContainer blobContainer = null;
+	/** Properties passed to the exit by the agent */
+	private Map<String, String> exitProperties = new HashMap<String, String>();
+
+	/** Maximum number of entries in each of the client and container caches */
+	private int cacheSize = AzConnectConstants.DEFAULT_CLIENT_CACHE_SIZE;
+
+	/** Blob clients keyed by account endpoint, least recently used first */
+	private final Map<String, CloudBlobClient> blobClients = new LinkedHashMap<String, CloudBlobClient>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CloudBlobClient> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	/** Container references keyed by account endpoint and container name, least recently used first */
+	private final Map<String, CloudBlobContainer> blobContainers = new LinkedHashMap<String, CloudBlobContainer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CloudBlobContainer> eldest) {
+			return size() > cacheSize;
+		}
+	};
 
 	private AzConnectIOUtil() {
 		AzConnectTrace.entry(this, "<init>");
@@ -40,16 +71,25 @@ public class AzConnectIOUtil {
 		AzConnectTrace.exit(this, "<init>");
 	}
 	
-	private CloudBlobClient getBlobClient(final String blobPath) {
-		CloudBlobClient localBlobClient = null;
-		AzConnectTrace.entry(this, "getBlobClient");
+	/**
+	 * Returns the blob client for the given account, creating it on first use.
+	 * @param accountEndpoint BlobEndpoint up to and including the account name
+	 * @return blob client or null if the connection string could not be parsed
+	 */
+	private synchronized CloudBlobClient getBlobClient(final String accountEndpoint) {
+		CloudBlobClient localBlobClient = blobClients.get(accountEndpoint);
+		if(localBlobClient != null)
+			return localBlobClient;
+
+		AzConnectTrace.entry(this, "getBlobClient", accountEndpoint);
 		
 		try {
 		    // Retrieve storage account from connection-string.
-		    CloudStorageAccount storageAccount = CloudStorageAccount.parse(azStorageConnectionString + blobPath);
+		    CloudStorageAccount storageAccount = CloudStorageAccount.parse(azStorageConnectionString + accountEndpoint);
 
 		    // Create the blob client.
 		    localBlobClient = storageAccount.createCloudBlobClient();
+		    blobClients.put(accountEndpoint, localBlobClient);
 		} catch(Exception ex) {
 			AzConnectTrace.throwing(this,"getBlobClient", ex);
 		}
@@ -57,6 +97,27 @@ public class AzConnectIOUtil {
 		AzConnectTrace.exit(this, "getBlobClient", localBlobClient);
 		return localBlobClient;
 	}
+
+	/**
+	 * Returns a reference to the given container, creating it on first use.
+	 * @param accountEndpoint BlobEndpoint up to and including the account name
+	 * @param containerName name of the container
+	 * @return container reference
+	 * @throws Exception
+	 */
+	private synchronized CloudBlobContainer getContainer(final String accountEndpoint, final String containerName) throws Exception {
+		final String key = accountEndpoint + "/" + containerName;
+		CloudBlobContainer container = blobContainers.get(key);
+
+		if(container == null) {
+			CloudBlobClient client = getBlobClient(accountEndpoint);
+			if(client == null)
+				throw new Exception("Unable to connect to " + accountEndpoint);
+			container = client.getContainerReference(containerName);
+			blobContainers.put(key, container);
+		}
+		return container;
+	}
 	
 	/**
 	 * Returns an instance of connection instance to Azure Blob Storage
@@ -66,6 +127,72 @@ public class AzConnectIOUtil {
 		return singletonConnection;
 	}
 	
+	/**
+	 * Saves the properties the agent passed to the exit during initialization.
+	 * @param properties agent properties, may be null
+	 */
+	public synchronized void setProperties(final Map<String, String> properties) {
+		exitProperties = new HashMap<String, String>();
+		if(properties != null)
+			exitProperties.putAll(properties);
+		cacheSize = getIntProperty(AzConnectConstants.PROP_CLIENT_CACHE_SIZE, AzConnectConstants.DEFAULT_CLIENT_CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the value of an integer property or the given default if the
+	 * property is not set or is not a positive number.
+	 * @param name property name
+	 * @param defaultValue value to use if property is not set
+	 * @return property value
+	 */
+	public synchronized int getIntProperty(final String name, final int defaultValue) {
+		return getIntProperty(name, defaultValue, 1);
+	}
+
+	/**
+	 * Returns the value of an integer property or the given default if the
+	 * property is not set or is a negative number. Unlike getIntProperty, 0 is
+	 * a valid value.
+	 * @param name property name
+	 * @param defaultValue value to use if property is not set
+	 * @return property value
+	 */
+	public synchronized int getNonNegativeIntProperty(final String name, final int defaultValue) {
+		return getIntProperty(name, defaultValue, 0);
+	}
+
+	private int getIntProperty(final String name, final int defaultValue, final int minimum) {
+		final String fid = "getIntProperty";
+		int value = defaultValue;
+		String propValue = exitProperties.get(name);
+
+		if(propValue != null) {
+			try {
+				value = Integer.parseInt(propValue.trim());
+				if(value < minimum) {
+					AzConnectTrace.data(this, fid, "Ignoring value below " + minimum + " for " + name, propValue);
+					value = defaultValue;
+				}
+			} catch (NumberFormatException ex) {
+				AzConnectTrace.throwing(this, fid, ex);
+				value = defaultValue;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of a boolean property or the given default if the
+	 * property is not set.
+	 * @param name property name
+	 * @param defaultValue value to use if property is not set
+	 * @return property value
+	 */
+	public synchronized boolean getBooleanProperty(final String name, final boolean defaultValue) {
+		String propValue = exitProperties.get(name);
+		return (propValue != null) ? propValue.trim().equalsIgnoreCase("true") : defaultValue;
+	}
+
 	public AzConnectStorage getBlockBlob(final String blobPath) throws Exception {
 		final String fid = "getBlockBlob";
 		String containerName = null;
@@ -78,19 +205,34 @@ public class AzConnectIOUtil {
 			 * The blob path takes the form: 
 			 * BlobEndpoint=http://127.0.0.1:10000/devstoreaccount1/<container name>/<block name>
 			 * 
+			 * The block name may itself contain '/' separated virtual directories. A path
+			 * ending with '/' refers to a virtual directory in the container.
 			 */
 			String [] pathTokens = blobPath.split("/");
-			if(pathTokens.length == 6) {
-				CloudBlockBlob blockBlob = null;
+			String accountEndpoint = null;
+			if(pathTokens.length >= 4)
+				accountEndpoint = pathTokens[0] + "/" + pathTokens[1] + "/" + pathTokens[2] + "/" + pathTokens[3];
+
+			if(pathTokens.length >= 6) {
+				CloudBlobContainer blobContainer = null;
 				containerName = pathTokens[4];
-				blockBlobName = pathTokens[5];
-				blobContainer = getBlobClient(blobPath).getContainerReference(containerName);
-				blockBlob = blobContainer.getBlockBlobReference(blockBlobName);
-				storage = new AzConnectBlob(AzConnectConstants.AZ_CONNECT_STORAGE_BLOB, blockBlob);
+				StringBuilder name = new StringBuilder(pathTokens[5]);
+				for(int i = 6; i < pathTokens.length; i++) {
+					name.append('/').append(pathTokens[i]);
+				}
+				blockBlobName = name.toString();
+				blobContainer = getContainer(accountEndpoint, containerName);
+
+				if(blobPath.endsWith("/")) {
+					storage = new AzConnectContainer(AzConnectConstants.AZ_CONNECT_STORAGE_CONTAINER, blobContainer, blockBlobName + "/");
+				} else {
+					CloudBlockBlob blockBlob = blobContainer.getBlockBlobReference(blockBlobName);
+					storage = new AzConnectBlob(AzConnectConstants.AZ_CONNECT_STORAGE_BLOB, blockBlob);
+				}
 			} else if(pathTokens.length == 5) {
 				AzConnectTrace.data(this, fid, "Get container name");
 				containerName = pathTokens[4];
-				blobContainer = getBlobClient(blobPath).getContainerReference(containerName);
+				CloudBlobContainer blobContainer = getContainer(accountEndpoint, containerName);
 				storage = new AzConnectContainer(AzConnectConstants.AZ_CONNECT_STORAGE_CONTAINER, blobContainer);
 			} else {
 				Exception ex = new Exception("Invalid Blob path");
@@ -105,22 +247,52 @@ public class AzConnectIOUtil {
 		return storage;
 	}
 	
-	public IOExitResourcePath[] listContainerBlobs() {
+	/**
+	 * Lists the blobs in the given container a page at a time. Each path is built
+	 * from the properties returned by the listing, so no further requests are made
+	 * to Azure Storage for the blobs listed.
+	 * @param blobContainer container to list, taken from the path being listed
+	 * @param prefix only list blobs whose names start with this prefix, may be null
+	 * @return paths of the blobs in the container
+	 */
+	public IOExitResourcePath[] listContainerBlobs(final CloudBlobContainer blobContainer, final String prefix) {
 		final String fid = "listContainerBlobs";
-		AzConnectTrace.entry(this, fid);
+		AzConnectTrace.entry(this, fid, blobContainer, prefix);
 		
 		try {
-				Iterable<ListBlobItem> lbi = blobContainer.listBlobs();
-				List <AzConnectIOResourcePath> paths = new ArrayList<AzConnectIOResourcePath>();
-				for(ListBlobItem bi : lbi) {
-					paths.add(new AzConnectIOResourcePath(bi.getUri().toASCIIString()));
+			final int pageSize = getIntProperty(AzConnectConstants.PROP_LIST_PAGE_SIZE, AzConnectConstants.DEFAULT_LIST_PAGE_SIZE);
+			List<IOExitResourcePath> paths = new ArrayList<IOExitResourcePath>();
+			ResultContinuation continuationToken = null;
+
+			do {
+				ResultSegment<ListBlobItem> segment = blobContainer.listBlobsSegmented(prefix, true,
+						EnumSet.noneOf(BlobListingDetails.class), pageSize, continuationToken, null, null);
+				for(ListBlobItem bi : segment.getResults()) {
+					// Flat listing only returns blobs. Page and append blobs are not supported by the exit.
+					if(bi instanceof CloudBlockBlob)
+						paths.add(newListedPath((CloudBlockBlob) bi));
 				}
-				AzConnectTrace.exit(this, fid, paths);
-				return (IOExitResourcePath[]) paths.toArray();
+				continuationToken = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+				AzConnectTrace.data(this, fid, "Listed", paths.size());
+			} while(continuationToken != null);
+
+			AzConnectTrace.exit(this, fid, paths.size());
+			return paths.toArray(new IOExitResourcePath[paths.size()]);
 		} catch(Exception ex) {
 			AzConnectTrace.throwing(this, fid, ex);
 		}
 		AzConnectTrace.exit(this, fid);
 		return null;
 	}
+
+	/**
+	 * Creates the path for a blob returned by a container listing. The listing
+	 * already carries the blob's properties, so no request is made.
+	 * @param listedBlob blob from the listing
+	 * @return path of the blob
+	 */
+	IOExitResourcePath newListedPath(final CloudBlockBlob listedBlob) {
+		AzConnectStorage blob = new AzConnectBlob(AzConnectConstants.AZ_CONNECT_STORAGE_BLOB, listedBlob, true);
+		return new AzConnectIOResourcePath("BlobEndpoint=" + listedBlob.getUri().toASCIIString(), blob);
+	}
 }
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a blob as fixed size ranges using a number of threads. Ranges are
+ * fetched ahead of the agent into a bounded set of buffers and handed back in
+ * blob order through read(ByteBuffer).
+ */
+public class AzConnectRangeReader {
+
+	/** A downloaded range of the blob */
+	private static class Range {
+		byte[] data;
+		int length;
+		int position;
+	}
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private final AzConnectStorage blockBlob;
+	private final long blobSize;
+	/** ETag of the blob when the read started, every range must match it */
+	private final String etag;
+	private final int rangeSize;
+	private final int prefetch;
+	private final ExecutorService executor;
+	/** Ranges submitted for download, in blob order */
+	private final ArrayDeque<Future<Range>> pendingRanges = new ArrayDeque<Future<Range>>();
+	/** Offset of the next range to submit */
+	private long nextOffset = 0;
+	/** Range currently being handed to the agent */
+	private Range currentRange = null;
+
+	/**
+	 * Constructor
+	 * @param blockBlob blob to read
+	 * @param blobSize size of the blob
+	 * @param etag ETag of the blob the size was read from, null to not check
+	 * @param threads number of ranges downloaded at the same time
+	 * @param rangeSize size of each range
+	 * @param prefetch number of ranges fetched ahead of the agent
+	 */
+	public AzConnectRangeReader(final AzConnectStorage blockBlob, final long blobSize, final String etag,
+			final int threads, final int rangeSize, final int prefetch) {
+		final String fid = "<init>";
+		AzConnectTrace.entry(this, fid, blockBlob, blobSize, etag, threads, rangeSize, prefetch);
+
+		this.blockBlob = blockBlob;
+		this.blobSize = blobSize;
+		this.etag = etag;
+		this.rangeSize = rangeSize;
+		this.prefetch = Math.max(prefetch, threads);
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AzConnectRangeReader-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		fillPrefetch();
+
+		AzConnectTrace.exit(this, fid);
+	}
+
+	/**
+	 * Submits ranges for download until the prefetch limit is reached or
+	 * the whole blob has been submitted.
+	 */
+	private void fillPrefetch() {
+		while(pendingRanges.size() < prefetch && nextOffset < blobSize) {
+			final long offset = nextOffset;
+			final int length = (int) Math.min(rangeSize, blobSize - offset);
+			nextOffset += length;
+
+			pendingRanges.add(executor.submit(new Callable<Range>() {
+				@Override
+				public Range call() throws Exception {
+					return downloadRange(offset, length);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Downloads a single range into a pooled buffer.
+	 * @param offset offset of the range in the blob
+	 * @param length length of the range
+	 * @return downloaded range
+	 * @throws Exception
+	 */
+	private Range downloadRange(final long offset, final int length) throws Exception {
+		final String fid = "downloadRange";
+		Range range = new Range();
+		range.data = AzConnectBufferPool.acquire(length);
+
+		try {
+			int total = 0;
+			while(total < length) {
+				int bytesRead = blockBlob.downloadRange(offset + total, length - total, range.data, total, etag);
+				if(bytesRead <= 0)
+					throw new IOException("Blob ended at offset " + (offset + total) + " before expected size " + blobSize);
+				total += bytesRead;
+			}
+			range.length = total;
+		} catch (Exception ex) {
+			AzConnectBufferPool.release(range.data);
+			AzConnectTrace.throwing(this, fid, ex);
+			throw ex;
+		}
+		return range;
+	}
+
+	/**
+	 * Copies the next bytes of the blob into the given buffer.
+	 * @param readBuffer buffer to fill
+	 * @return number of bytes copied, or -1 at the end of the blob
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer readBuffer) throws IOException {
+		final String fid = "read";
+		if(readBuffer.remaining() == 0)
+			return 0;
+
+		if(currentRange == null || currentRange.position == currentRange.length) {
+			if(currentRange != null) {
+				AzConnectBufferPool.release(currentRange.data);
+				currentRange = null;
+			}
+
+			Future<Range> next = pendingRanges.poll();
+			if(next == null)
+				return -1;
+
+			try {
+				currentRange = next.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				AzConnectTrace.throwing(this, fid, ex);
+				throw new IOException(ex);
+			} catch (ExecutionException ex) {
+				AzConnectTrace.throwing(this, fid, ex.getCause());
+				throw new IOException(ex.getCause());
+			}
+			fillPrefetch();
+		}
+
+		int length = Math.min(readBuffer.remaining(), currentRange.length - currentRange.position);
+		readBuffer.put(currentRange.data, currentRange.position, length);
+		currentRange.position += length;
+		return length;
+	}
+
+	/**
+	 * Stops any outstanding downloads and returns all buffers to the pool.
+	 */
+	public void close() {
+		final String fid = "close";
+		AzConnectTrace.entry(this, fid);
+
+		executor.shutdownNow();
+		if(currentRange != null) {
+			AzConnectBufferPool.release(currentRange.data);
+			currentRange = null;
+		}
+
+		Future<Range> pending;
+		while((pending = pendingRanges.poll()) != null) {
+			if(!pending.cancel(true)) {
+				try {
+					AzConnectBufferPool.release(pending.get().data);
+				} catch (Exception ex) {
+					// Download failed, nothing to release
+				}
+			}
+		}
+		AzConnectTrace.exit(this, fid);
+	}
+}
@@ -28,6 +28,10 @@ public class AzConnectReadChannel implements IOExitChannel {
 	private AzConnectStorage blockBlob = null;
 	private BlobInputStream blobInStream = null;
 	private long totalBytesRead = 0;
+	/** Scratch array used when the agent hands us a direct buffer */
+	private byte[] scratchBuffer = null;
+	/** Parallel ranged reader, used instead of blobInStream when enabled */
+	private AzConnectRangeReader rangeReader = null;
 	
 	public AzConnectReadChannel(AzConnectStorage blockBlob) {
 		final String fid = "<init>";
@@ -36,7 +40,28 @@ public class AzConnectReadChannel implements IOExitChannel {
 		this.blockBlob = blockBlob;
 		
 		try {
-			blobInStream = blockBlob.openInputStream();
+			AzConnectIOUtil util = AzConnectIOUtil.getInstance();
+			int threads = util.getIntProperty(AzConnectConstants.PROP_READ_THREADS, AzConnectConstants.DEFAULT_READ_THREADS);
+			int rangeSize = util.getIntProperty(AzConnectConstants.PROP_READ_RANGE_SIZE, AzConnectConstants.DEFAULT_READ_RANGE_SIZE);
+			int prefetch = util.getIntProperty(AzConnectConstants.PROP_READ_PREFETCH, AzConnectConstants.DEFAULT_READ_PREFETCH);
+
+			long blobSize = 0;
+			String etag = null;
+			if(threads > 1) {
+				blockBlob.fetchAttributes();
+				blobSize = blockBlob.getSize();
+				// Ranges are separate requests, so each one checks the blob has not been
+				// replaced since its size was read, as the single stream does
+				etag = blockBlob.getETag();
+			}
+
+			// Small blobs are not worth splitting, read them with a single stream
+			if(threads > 1 && blobSize > rangeSize) {
+				AzConnectTrace.data(this, fid, "Parallel read", blobSize);
+				rangeReader = new AzConnectRangeReader(blockBlob, blobSize, etag, threads, rangeSize, prefetch);
+			} else {
+				blobInStream = blockBlob.openInputStream();
+			}
 		} catch (StorageException e) {
 			AzConnectTrace.throwing(this, fid, e);
 		}
@@ -51,8 +76,12 @@ public class AzConnectReadChannel implements IOExitChannel {
 		AzConnectTrace.entry(this, fid, blobInStream);
 		
 		try {
-			if(blobInStream != null) {
+			if(rangeReader != null) {
+				rangeReader.close();
+			} else if(blobInStream != null) {
 				blobInStream.close();
+				AzConnectBufferPool.release(scratchBuffer);
+				scratchBuffer = null;
 			} else {
 				IOException iex = new IOException("Blob not opened for output");
 				AzConnectTrace.throwing(this, fid, iex);;
@@ -78,15 +107,15 @@ public class AzConnectReadChannel implements IOExitChannel {
 		final String fid = "read";
 		int readSize = 0;
 		
-		AzConnectTrace.entry(this, fid);
+		if(AzConnectTrace.isOn())
+			AzConnectTrace.entry(this, fid);
 		try {
-			if(blobInStream != null) {
-				byte[] arr = new byte[readBuffer.remaining()];
-				readSize = blobInStream.read(arr);
-				readBuffer.put(arr);
+			if(rangeReader != null || blobInStream != null) {
+				readSize = (rangeReader != null) ? rangeReader.read(readBuffer) : readInto(readBuffer);
 				if(readSize > 0)
 					totalBytesRead += readSize;
-				AzConnectTrace.data(this, fid, "bytes read [" + readSize + "] total bytes read [" + totalBytesRead + "]");
+				if(AzConnectTrace.isOn())
+					AzConnectTrace.data(this, fid, "bytes read [" + readSize + "] total bytes read [" + totalBytesRead + "]");
 			} else {
 				AzConnectTrace.data(this, fid, "Blob not opened for input");
 			}
@@ -94,11 +123,43 @@ public class AzConnectReadChannel implements IOExitChannel {
 			AzConnectTrace.throwing(this, fid, ex);
 			throw ex;
 		}
-		AzConnectTrace.exit(this, fid, readSize);
+		if(AzConnectTrace.isOn())
+			AzConnectTrace.exit(this, fid, readSize);
 		
 		return readSize;
 	}
 
+	/**
+	 * Reads from the blob stream straight into the given buffer. Heap buffers are
+	 * filled through their backing array, direct buffers through a pooled scratch
+	 * array. The buffer position is only advanced by the number of bytes actually
+	 * read.
+	 * @param readBuffer buffer to fill
+	 * @return number of bytes read, or -1 at the end of the blob
+	 * @throws IOException
+	 */
+	private int readInto(ByteBuffer readBuffer) throws IOException {
+		final int length = readBuffer.remaining();
+		if(length == 0)
+			return 0;
+
+		int readSize = 0;
+		if(readBuffer.hasArray()) {
+			readSize = blobInStream.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length);
+			if(readSize > 0)
+				readBuffer.position(readBuffer.position() + readSize);
+		} else {
+			if(scratchBuffer == null || scratchBuffer.length < length) {
+				AzConnectBufferPool.release(scratchBuffer);
+				scratchBuffer = AzConnectBufferPool.acquire(length);
+			}
+			readSize = blobInStream.read(scratchBuffer, 0, length);
+			if(readSize > 0)
+				readBuffer.put(scratchBuffer, 0, readSize);
+		}
+		return readSize;
+	}
+
 	@Override
 	public long size() throws IOException {
 		final String fid = "size";
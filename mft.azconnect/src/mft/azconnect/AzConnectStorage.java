@@ -15,9 +15,13 @@
  */
 package mft.azconnect;
 
+import java.io.IOException;
+import java.util.List;
+
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.BlobInputStream;
 import com.microsoft.azure.storage.blob.BlobOutputStream;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlobDirectory;
 
 /**
@@ -38,6 +42,19 @@ public abstract class AzConnectStorage {
 	
 	protected CloudBlobDirectory getParent(){return null;}
 	
+	/**
+	 * Returns the container this storage object belongs to, or is.
+	 * @return container reference
+	 */
+	protected CloudBlobContainer getContainer() {return null;}
+	
+	/**
+	 * Returns the blob name prefix of the virtual directory this storage object
+	 * represents, or null if it is a blob or a whole container.
+	 * @return prefix ending with '/' or null
+	 */
+	protected String getPrefix() {return null;}
+	
 	protected void delete() throws StorageException {}
 	
 	protected boolean exists() throws StorageException {return false;}
@@ -57,12 +74,70 @@ public abstract class AzConnectStorage {
 	protected long getSize() {
 		return 0;
 	}
+
+	/**
+	 * Refreshes the properties, like size and last modified time, from the storage.
+	 * @throws StorageException
+	 */
+	protected void fetchAttributes() throws StorageException {}
+
+	/**
+	 * Returns the ETag of the storage object as last fetched.
+	 * @return ETag or null if not known
+	 */
+	protected String getETag() {return null;}
+
+	/**
+	 * Discards any cached properties so the next request fetches them again.
+	 * Called after the storage object has been written to.
+	 */
+	protected void invalidateAttributes() {}
+
+	/**
+	 * Returns true if blocks written to this storage object are committed
+	 * on rename rather than on close, see AzConnectBlob.deferCommitTo.
+	 * @return true if commit is deferred
+	 */
+	protected boolean isCommitDeferred() {return false;}
+
+	/**
+	 * Downloads a range of bytes into the given array.
+	 * @param offset offset of the first byte in the storage object
+	 * @param length number of bytes to download
+	 * @param buffer array to download into
+	 * @param bufferOffset offset in the array to start writing at
+	 * @param etag ETag the storage object must still have, null to download
+	 *        whatever version is current
+	 * @return number of bytes downloaded
+	 * @throws StorageException
+	 */
+	protected int downloadRange(final long offset, final long length, final byte[] buffer, final int bufferOffset,
+			final String etag) throws StorageException {
+		return 0;
+	}
 	
+	/**
+	 * Uploads a block that is not part of the blob until the block list is committed.
+	 * @param blockId Base64 encoded block id
+	 * @param data block data
+	 * @param length number of bytes of data in the block
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	protected void uploadBlock(final String blockId, final byte[] data, final int length) throws StorageException, IOException {}
+
+	/**
+	 * Commits the given list of uploaded blocks as the content of the blob.
+	 * @param blockIds block ids in blob order
+	 * @throws StorageException
+	 */
+	protected void commitBlockList(final List<String> blockIds) throws StorageException {}
+
 	protected String getName() {
 		return null;
 	}
 	
-	protected void renameTo(final String newPath){}
+	protected void renameTo(final String newPath) throws IOException {}
 	
 	protected String getBlobName() {return null;}
 }
@@ -16,75 +16,91 @@
 package mft.azconnect;
 
 import java.io.IOException;
-import java.util.logging.FileHandler;
-import java.util.logging.Level;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
+import java.util.Map;
 
+/**
+ * Trace for the exit. Trace points are checked against the trace level before
+ * anything is allocated. Enabled trace points are written to a ring buffer and
+ * a background thread formats them and writes them to the trace file, so the
+ * transfer threads never wait for file IO.
+ *
+ * Hot paths should guard trace calls that build strings or pass arguments with
+ * isOn(), as the varargs array is created by the caller.
+ */
 public class AzConnectTrace {
-    static private FileHandler fileHTML;
-    static private AzConnectTraceFormatter formatterHTML;
-    static Logger logger = null;
-    
-    static public void setup() throws IOException {
+	/** No trace */
+	static final int LEVEL_OFF = 0;
+	/** Only exceptions */
+	static final int LEVEL_ERROR = 1;
+	/** Entry, exit, data and exceptions */
+	static final int LEVEL_ALL = 2;
 
-        // get the logger to configure it
-        logger = Logger.getLogger("mft.azconnect");
+	private static volatile int level = LEVEL_OFF;
+	private static AzConnectTraceWriter writer = null;
 
-        logger.setLevel(Level.FINEST);
-        fileHTML = new FileHandler("Logging.html");
+	/**
+	 * Sets up trace from the properties passed to the exit. Trace is off unless
+	 * azConnectTraceLevel is set. Calling setup again changes the level but
+	 * keeps writing to the file opened first.
+	 * @param properties exit properties, may be null
+	 * @throws IOException if the trace file can not be opened
+	 */
+	static public synchronized void setup(final Map<String, String> properties) throws IOException {
+		String levelName = getProperty(properties, AzConnectConstants.PROP_TRACE_LEVEL, AzConnectConstants.DEFAULT_TRACE_LEVEL);
+		int newLevel = LEVEL_OFF;
+		if(levelName.equalsIgnoreCase("all")) {
+			newLevel = LEVEL_ALL;
+		} else if(levelName.equalsIgnoreCase("error")) {
+			newLevel = LEVEL_ERROR;
+		}
 
-        // create an HTML formatter
-        formatterHTML = new AzConnectTraceFormatter();
-        fileHTML.setFormatter(formatterHTML);
-        logger.addHandler(fileHTML);
-    }
+		if(newLevel != LEVEL_OFF && writer == null) {
+			String fileName = getProperty(properties, AzConnectConstants.PROP_TRACE_FILE, AzConnectConstants.DEFAULT_TRACE_FILE);
+			String format = getProperty(properties, AzConnectConstants.PROP_TRACE_FORMAT, AzConnectConstants.DEFAULT_TRACE_FORMAT);
+			int bufferSize = AzConnectConstants.DEFAULT_TRACE_BUFFER_SIZE;
+			try {
+				bufferSize = Integer.parseInt(getProperty(properties, AzConnectConstants.PROP_TRACE_BUFFER_SIZE, String.valueOf(bufferSize)));
+			} catch (NumberFormatException ex) {
+				// Keep the default
+			}
 
-	public static void entry(final Object clsObj, final String methodName, Object... objects) {
-		LogRecord log = new LogRecord(Level.FINEST, "ENTRY");
-		log.setParameters(objects);
-		log.setMillis(System.currentTimeMillis());
-		log.setThreadID((int) Thread.currentThread().getId());
-		log.setSourceClassName(getClassName(clsObj));
-		log.setSourceMethodName(methodName);
-		logger.log(log);
+			AzConnectTraceWriter.RecordFormatter formatter = format.equalsIgnoreCase("text")
+					? new AzConnectTraceTextFormatter() : new AzConnectTraceFormatter();
+			writer = new AzConnectTraceWriter(fileName, formatter, bufferSize);
+		}
+		level = newLevel;
 	}
-	
-	private static String getClassName(Object clsObj) {
-		Class<?> enclosingClass = clsObj.getClass().getEnclosingClass();
-		String className = "";
-		if (enclosingClass != null) {
-			className = enclosingClass.getName();
-			} else {
-				className = clsObj.getClass().getName();
-			}
-		return className;
+
+	private static String getProperty(final Map<String, String> properties, final String name, final String defaultValue) {
+		String value = (properties != null) ? properties.get(name) : null;
+		return (value != null) ? value.trim() : defaultValue;
 	}
-	
+
+	/**
+	 * Returns true if entry, exit and data trace points are written.
+	 * @return true if trace is on
+	 */
+	public static boolean isOn() {
+		return level >= LEVEL_ALL;
+	}
+
+	public static void entry(final Object clsObj, final String methodName, Object... objects) {
+		if(level >= LEVEL_ALL)
+			writer.write(AzConnectTraceWriter.ENTRY, clsObj, methodName, objects, null);
+	}
+
 	public static void exit(final Object clsObj, final String methodName, Object... objects) {
-		LogRecord log = new LogRecord(Level.FINEST, "EXIT");
-		log.setParameters(objects);
-		log.setThreadID((int) Thread.currentThread().getId());
-		log.setSourceClassName(getClassName(clsObj));
-		log.setSourceMethodName(methodName);
-		logger.log(log);
+		if(level >= LEVEL_ALL)
+			writer.write(AzConnectTraceWriter.EXIT, clsObj, methodName, objects, null);
 	}
-	
+
 	public static void data(final Object clsObj, final String methodName, final Object... data ) {
-		LogRecord log = new LogRecord(Level.FINEST, "DATA");
-		log.setSourceClassName(getClassName(clsObj));
-		log.setThreadID((int) Thread.currentThread().getId());
-		log.setSourceMethodName(methodName);
-		log.setParameters(data);
-		logger.log(log);
+		if(level >= LEVEL_ALL)
+			writer.write(AzConnectTraceWriter.DATA, clsObj, methodName, data, null);
 	}
-    
+
 	public static void throwing(final Object clsObj, final String methodName, final Throwable th ) {
-		LogRecord log = new LogRecord(Level.FINEST, "THROWING");
-		log.setThreadID((int) Thread.currentThread().getId());
-		log.setSourceClassName(getClassName(clsObj));
-		log.setSourceMethodName(methodName);
-		log.setThrown(th);
-		logger.log(log);		
+		if(level >= LEVEL_ERROR)
+			writer.write(AzConnectTraceWriter.THROWING, clsObj, methodName, null, th);
 	}
 }
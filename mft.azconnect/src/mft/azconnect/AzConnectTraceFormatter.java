@@ -21,43 +21,58 @@ import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
-public class AzConnectTraceFormatter extends Formatter {
+public class AzConnectTraceFormatter extends Formatter implements AzConnectTraceWriter.RecordFormatter {
 
 	@Override
 	public String format(LogRecord record) {
+		String msg = record.getMessage();
+		int type = AzConnectTraceWriter.DATA;
+		if(msg.equalsIgnoreCase("ENTRY")) {
+			type = AzConnectTraceWriter.ENTRY;
+		} else if(msg.equalsIgnoreCase("EXIT")) {
+			type = AzConnectTraceWriter.EXIT;
+		} else if(msg.equalsIgnoreCase("THROWING")) {
+			type = AzConnectTraceWriter.THROWING;
+		}
+		return format(record.getMillis(), record.getThreadID(), record.getSourceClassName(), type,
+				record.getSourceMethodName(), record.getParameters(), record.getThrown());
+	}
+
+	@Override
+	public String format(final long millis, final long threadId, final String className, final int type,
+			final String methodName, final Object[] parameters, final Throwable thrown) {
 		StringBuffer buf = new StringBuffer(1000);
         buf.append("<tr>\n");
 
         buf.append("\t<td>");
-        buf.append(calcDate(record.getMillis()));
+        buf.append(calcDate(millis));
         buf.append("</td>\n");
 
         buf.append("\t<td>");
-        buf.append(record.getThreadID());
+        buf.append(threadId);
         buf.append("</td>\n");
 
         buf.append("\t<td>");
-        buf.append(record.getSourceClassName());
+        buf.append(className);
         buf.append("</td>\n");
         
         buf.append("\t<td>");
-        String msg = record.getMessage();
         String traceObjects = "";
         
-        if(msg.equalsIgnoreCase("ENTRY")) {
-        	traceObjects = " { " + record.getSourceMethodName();
-        } else if(msg.equalsIgnoreCase("EXIT")) {
-        	traceObjects = " } " + record.getSourceMethodName();
-        } else if(msg.equalsIgnoreCase("THROWING")) {
-        	traceObjects = " E " + record.getSourceMethodName();        	
-            if(record.getThrown() != null) {
-            	buf.append(record.getThrown());
+        if(type == AzConnectTraceWriter.ENTRY) {
+        	traceObjects = " { " + methodName;
+        } else if(type == AzConnectTraceWriter.EXIT) {
+        	traceObjects = " } " + methodName;
+        } else if(type == AzConnectTraceWriter.THROWING) {
+        	traceObjects = " E " + methodName;
+            if(thrown != null) {
+            	buf.append(thrown);
             }        	
         } else {
-        	traceObjects = " D " + record.getSourceMethodName();
+        	traceObjects = " D " + methodName;
         }
         
-        Object [] params = record.getParameters();
+        Object [] params = (parameters != null) ? parameters : new Object[0];
         for(Object obj : params) {
         	traceObjects += "[" + obj + "]";
         }
@@ -77,6 +92,16 @@ public class AzConnectTraceFormatter extends Formatter {
         return date_format.format(resultdate);
     }
 
+    @Override
+    public String getHead() {
+        return getHead(null);
+    }
+
+    @Override
+    public String getTail() {
+        return getTail(null);
+    }
+
     // this method is called just after the handler using this
     // formatter is created
     public String getHead(Handler h) {
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats a trace record as a single line of text:
+ *  time thread class method-marker [parameter]...
+ * where the marker is { for entry, } for exit, D for data and E for exceptions.
+ * Only used from the trace writer thread.
+ */
+public class AzConnectTraceTextFormatter implements AzConnectTraceWriter.RecordFormatter {
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final Date date = new Date();
+	private final StringBuilder buf = new StringBuilder(256);
+
+	@Override
+	public String getHead() {
+		return "";
+	}
+
+	@Override
+	public String getTail() {
+		return "";
+	}
+
+	@Override
+	public String format(final long millis, final long threadId, final String className, final int type,
+			final String methodName, final Object[] parameters, final Throwable thrown) {
+		buf.setLength(0);
+		date.setTime(millis);
+		buf.append(dateFormat.format(date)).append(' ');
+		buf.append(threadId).append(' ');
+		buf.append(className);
+
+		if(type == AzConnectTraceWriter.ENTRY) {
+			buf.append(" { ");
+		} else if(type == AzConnectTraceWriter.EXIT) {
+			buf.append(" } ");
+		} else if(type == AzConnectTraceWriter.THROWING) {
+			buf.append(" E ");
+		} else {
+			buf.append(" D ");
+		}
+		buf.append(methodName);
+
+		if(parameters != null) {
+			for(Object obj : parameters) {
+				buf.append('[').append(obj).append(']');
+			}
+		}
+		if(thrown != null) {
+			buf.append(' ').append(thrown);
+		}
+		buf.append('\n');
+		return buf.toString();
+	}
+}
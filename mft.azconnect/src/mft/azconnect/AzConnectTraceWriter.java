@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) IBM Corporation 2018
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ *
+ ***************************************************************************
+ */
+package mft.azconnect;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes trace records to a file from a background thread. Records are passed
+ * through a fixed size ring of preallocated slots. Writers claim a slot with a
+ * compare and swap, so transfer threads never block; if the ring is full the
+ * record is dropped and counted.
+ */
+public class AzConnectTraceWriter {
+	static final int ENTRY = 0;
+	static final int EXIT = 1;
+	static final int DATA = 2;
+	static final int THROWING = 3;
+
+	private static final Object[] NO_PARAMETERS = new Object[0];
+
+	/** Formats the records taken from the ring for the trace file */
+	interface RecordFormatter {
+		String getHead();
+		String getTail();
+		String format(long millis, long threadId, String className, int type, String methodName,
+				Object[] parameters, Throwable thrown);
+	}
+
+	/** A preallocated trace record */
+	private static class Slot {
+		/** Sequence number of the record in the slot, set last when publishing */
+		volatile long sequence = -1;
+		int type;
+		long millis;
+		long threadId;
+		Class<?> sourceClass;
+		String methodName;
+		Object[] parameters;
+		Throwable thrown;
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+	/** Sequence number of the next slot to claim */
+	private final AtomicLong claimed = new AtomicLong(0);
+	/** Sequence number of the next slot to write to the file */
+	private final AtomicLong consumed = new AtomicLong(0);
+	/** Records dropped because the ring was full */
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private final RecordFormatter formatter;
+	private final Writer out;
+	private volatile boolean running = true;
+	private final Thread drainThread;
+
+	/**
+	 * Opens the trace file and starts the background thread.
+	 * @param fileName trace file
+	 * @param formatter formats each record
+	 * @param bufferSize number of records the ring holds, rounded up to a power of 2
+	 * @throws IOException
+	 */
+	AzConnectTraceWriter(final String fileName, final RecordFormatter formatter, final int bufferSize) throws IOException {
+		int size = 64;
+		while(size < bufferSize && size < (1 << 24)) {
+			size <<= 1;
+		}
+		slots = new Slot[size];
+		for(int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		mask = size - 1;
+
+		this.formatter = formatter;
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8));
+		out.write(formatter.getHead());
+
+		drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AzConnectTraceWriter");
+		drainThread.setDaemon(true);
+		drainThread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, "AzConnectTraceWriterShutdown"));
+	}
+
+	/**
+	 * Adds a record to the ring.
+	 */
+	void write(final int type, final Object clsObj, final String methodName, final Object[] parameters, final Throwable thrown) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if(sequence - consumed.get() >= slots.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while(!claimed.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = slots[(int) (sequence & mask)];
+		slot.type = type;
+		slot.millis = System.currentTimeMillis();
+		slot.threadId = Thread.currentThread().getId();
+		slot.sourceClass = clsObj.getClass();
+		slot.methodName = methodName;
+		slot.parameters = parameters;
+		slot.thrown = thrown;
+		slot.sequence = sequence;
+	}
+
+	/**
+	 * Writes records to the file until the writer is closed.
+	 */
+	private void drain() {
+		while(running || consumed.get() < claimed.get()) {
+			long sequence = consumed.get();
+			Slot slot = slots[(int) (sequence & mask)];
+
+			if(slot.sequence == sequence) {
+				writeSlot(slot);
+				slot.sourceClass = null;
+				slot.parameters = null;
+				slot.thrown = null;
+				consumed.lazySet(sequence + 1);
+			} else if(claimed.get() > sequence) {
+				// Slot claimed but not yet published
+				Thread.yield();
+			} else {
+				flush();
+				LockSupport.parkNanos(1000000);
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Notes any dropped records in the file and flushes it.
+	 */
+	private void flush() {
+		try {
+			long drops = dropped.getAndSet(0);
+			if(drops > 0)
+				out.write("Trace records dropped: " + drops + "\n");
+			out.flush();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private void writeSlot(final Slot slot) {
+		try {
+			out.write(formatter.format(slot.millis, slot.threadId, getClassName(slot.sourceClass), slot.type,
+					slot.methodName, slot.parameters != null ? slot.parameters : NO_PARAMETERS, slot.thrown));
+		} catch (Exception ex) {
+			// Formatting runs after the trace point, the traced objects may have changed since
+			ex.printStackTrace();
+		}
+	}
+
+	private static String getClassName(final Class<?> cls) {
+		Class<?> enclosingClass = cls.getEnclosingClass();
+		return (enclosingClass != null) ? enclosingClass.getName() : cls.getName();
+	}
+
+	/**
+	 * Writes the remaining records and closes the file.
+	 */
+	void close() {
+		running = false;
+		try {
+			drainThread.join(5000);
+			out.write(formatter.getTail());
+			out.close();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+}
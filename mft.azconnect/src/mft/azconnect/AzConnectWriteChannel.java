@@ -29,6 +29,8 @@ public class AzConnectWriteChannel implements IOExitChannel {
 	private AzConnectStorage blockBlob = null;
 	private BlobOutputStream blobOutStream = null;
 	private long totalBytesWritten;
+	/** Parallel block writer, used instead of blobOutStream when enabled */
+	private AzConnectBlockWriter blockWriter = null;
 	
 	public AzConnectWriteChannel(AzConnectStorage blockBlob) {
 		final String fid = "<init>";
@@ -37,7 +39,15 @@ public class AzConnectWriteChannel implements IOExitChannel {
 		this.blockBlob = blockBlob;
 		totalBytesWritten = 0;
 		try {
-			blobOutStream = blockBlob.openOutputStream();
+			AzConnectIOUtil util = AzConnectIOUtil.getInstance();
+			int threads = util.getIntProperty(AzConnectConstants.PROP_WRITE_THREADS, AzConnectConstants.DEFAULT_WRITE_THREADS);
+			// Deferred commit needs the blocks staged individually, so always use the block writer
+			if(threads > 1 || blockBlob.isCommitDeferred()) {
+				int blockSize = util.getIntProperty(AzConnectConstants.PROP_WRITE_BLOCK_SIZE, AzConnectConstants.DEFAULT_WRITE_BLOCK_SIZE);
+				blockWriter = new AzConnectBlockWriter(blockBlob, threads, blockSize);
+			} else {
+				blobOutStream = blockBlob.openOutputStream();
+			}
 		} catch (StorageException e) {
 			AzConnectTrace.throwing(this, fid, e);
 		}
@@ -52,7 +62,9 @@ public class AzConnectWriteChannel implements IOExitChannel {
 		AzConnectTrace.entry(this, fid, blobOutStream);
 		
 		try {
-			if(blobOutStream != null) {
+			if(blockWriter != null) {
+				blockWriter.close();
+			} else if(blobOutStream != null) {
 				blobOutStream.flush();
 				blobOutStream.close();
 			} else {
@@ -63,6 +75,9 @@ public class AzConnectWriteChannel implements IOExitChannel {
 		} catch(Exception ex) {
 			AzConnectTrace.throwing(this, fid, ex);
 			throw ex;
+		} finally {
+			// Size and last modified time have changed
+			blockBlob.invalidateAttributes();
 		}
 		AzConnectTrace.exit(this, fid);
 	}
@@ -73,7 +88,10 @@ public class AzConnectWriteChannel implements IOExitChannel {
 		
 		AzConnectTrace.entry(this, fid, blobOutStream);
 		try {
-			if(blobOutStream != null) {
+			if(blockWriter != null) {
+				// Wait for the blocks in flight; they are only committed on close
+				blockWriter.waitForUploads();
+			} else if(blobOutStream != null) {
 				blobOutStream.flush();
 			} else {
 				IOException iex = new IOException("Blob not opened for output");
@@ -132,18 +150,25 @@ public class AzConnectWriteChannel implements IOExitChannel {
 	public int write(ByteBuffer buffer) throws RecoverableIOException, IOException {
 		final String fid = "write";
 		
-		AzConnectTrace.entry(this, fid, blobOutStream, buffer, buffer.remaining());
+		if(AzConnectTrace.isOn())
+			AzConnectTrace.entry(this, fid, blobOutStream, buffer, buffer.remaining());
 		int bytesWritten = 0;
 		
 		try {
-			if(blobOutStream != null) {
+			if(blockWriter != null) {
+				bytesWritten = blockWriter.write(buffer);
+				totalBytesWritten += bytesWritten;
+				if(AzConnectTrace.isOn())
+					AzConnectTrace.data(this, fid, "Position " + buffer.position() + " totalBytesWritten " + totalBytesWritten);
+			} else if(blobOutStream != null) {
 				byte[] arr = new byte[buffer.remaining()];
 				buffer.get(arr);
 				blobOutStream.write(arr);
 				// We don't get the size of the buffer we wrote
 				bytesWritten = arr.length;
 				totalBytesWritten += arr.length;
-				AzConnectTrace.data(this, fid, "Position " + buffer.position() + " totalBytesWritten " + totalBytesWritten);
+				if(AzConnectTrace.isOn())
+					AzConnectTrace.data(this, fid, "Position " + buffer.position() + " totalBytesWritten " + totalBytesWritten);
 			} else {
 				IOException ex = new IOException("Blob not opened for output");
 				AzConnectTrace.throwing(this, fid, ex);
@@ -154,7 +179,8 @@ public class AzConnectWriteChannel implements IOExitChannel {
 			throw ex;
 		}
 
-		AzConnectTrace.exit(this, fid, bytesWritten);
+		if(AzConnectTrace.isOn())
+			AzConnectTrace.exit(this, fid, bytesWritten);
 		return bytesWritten;
 	}
 }
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encrypting and decrypting file data with each cipher provider: the
+ * BouncyCastle lightweight API (cipherProvider empty), the JDK's SunJCE provider,
+ * which uses the processor's AES instructions, and the BouncyCastle JCA provider.
+ *
+ * The data is random and compression is off, so the score is the time of the
+ * cipher and the integrity packet for dataSize bytes. A key pair is generated for
+ * the run, so no key files are needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CryptDecryptBenchmark {
+	private static final char[] PASSPHRASE = "benchmark".toCharArray();
+
+	/** Size of the data encrypted or decrypted by each invocation */
+	@Param({"67108864"})
+	public int dataSize;
+
+	/** cipherProvider */
+	@Param({"", "SunJCE", "BC"})
+	public String cipherProvider;
+
+	/** cipher */
+	@Param({"AES_128", "AES_256"})
+	public String cipher;
+
+	private File keyDir;
+	private CryptDecryptUtil encryptor;
+	private CryptDecryptUtil decryptor;
+	private byte[] plain;
+	private byte[] encrypted;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		keyDir = File.createTempFile("cryptdecrypt", "keys");
+		keyDir.delete();
+		keyDir.mkdirs();
+		File publicKeyFile = new File(keyDir, "public.key");
+		File privateKeyFile = new File(keyDir, "private.key");
+		writeKeyPair(publicKeyFile, privateKeyFile);
+
+		encryptor = new CryptDecryptUtil(publicKeyFile.getPath(), null);
+		encryptor.setCipher(cipher);
+		encryptor.setCompression("NONE", -1);
+		encryptor.setCipherProvider(cipherProvider);
+		decryptor = new CryptDecryptUtil(privateKeyFile.getPath(), new String(PASSPHRASE));
+		decryptor.setCipherProvider(cipherProvider);
+
+		plain = new byte[dataSize];
+		new Random(1).nextBytes(plain);
+		encrypted = encryptData().toByteArray();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for(File file : keyDir.listFiles()) {
+			file.delete();
+		}
+		keyDir.delete();
+	}
+
+	@Benchmark
+	public long encrypt() throws Exception {
+		return encryptData().size();
+	}
+
+	@Benchmark
+	public long decrypt() throws Exception {
+		long bytes = decryptor.decryptStream(new ByteArrayInputStream(encrypted), new DiscardOutput());
+		if(bytes != dataSize)
+			throw new IOException("Decrypted " + bytes + " bytes of " + dataSize);
+		return bytes;
+	}
+
+	private ByteArrayOutputStream encryptData() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(dataSize + 65536);
+		OutputStream encryptorStream = encryptor.openEncryptor(out, new File(keyDir, "data.bin"));
+		encryptorStream.write(plain);
+		encryptorStream.close();
+		return out;
+	}
+
+	/**
+	 * Generate an RSA key pair and write the public and passphrase protected private
+	 * key to the given files
+	 */
+	private static void writeKeyPair(final File publicKeyFile, final File privateKeyFile) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+		generator.initialize(2048);
+		PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), new Date());
+		PGPDigestCalculator sha1 = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+		PGPSecretKey secretKey = new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "benchmark", sha1, null, null,
+				new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+				new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1)
+						.setProvider(BouncyCastleProvider.PROVIDER_NAME).build(PASSPHRASE));
+
+		OutputStream out = new FileOutputStream(privateKeyFile);
+		try {
+			secretKey.encode(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(publicKeyFile);
+		try {
+			secretKey.getPublicKey().encode(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Discards the decrypted data
+	 */
+	private static class DiscardOutput extends OutputStream {
+		@Override
+		public void write(final int b) {
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+		}
+	}
+}
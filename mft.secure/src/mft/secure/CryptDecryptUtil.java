@@ -25,7 +25,9 @@ package mft.secure;
  * 
  */
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,10 +35,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.zip.Deflater;
 
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.KeyFlags;
@@ -48,6 +56,7 @@ import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPObjectFactory;
 import org.bouncycastle.openpgp.PGPOnePassSignatureList;
 import org.bouncycastle.openpgp.PGPPrivateKey;
@@ -55,19 +64,19 @@ import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
-import org.bouncycastle.openpgp.PGPSecretKey;
-import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
 import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
-import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
-import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 
 /**
  * CryptDecryptUtil - Implements Encryption/Decryption
@@ -76,6 +85,8 @@ import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenera
 public class CryptDecryptUtil {
 	// Identifier for Key Flags sub packet that defines usage type
     private static final int   KEY_FLAGS = 27;
+    // Size of the buffers used to stream files, must be a power of 2 for partial length packets
+    private static final int   STREAM_BUFFER_SIZE = 1 << 16;
     // Certification type
     private static final int[] MASTER_KEY_CERTIFICATION_TYPES = new int[]{
     	PGPSignature.POSITIVE_CERTIFICATION,
@@ -88,20 +99,48 @@ public class CryptDecryptUtil {
     private KeyFingerPrintCalculator fingerPrintCalculator = null;
     private String keyRing = null;
     
-    private boolean initialized = false;
-    private PGPPublicKey publicKey = null;    
-    private boolean enableDebugLog = false;
+    // Files may be encrypted from several threads with one instance
+    private volatile boolean initialized = false;
+    private volatile PGPPublicKey publicKey = null;    
+    // Size of the buffer used to copy file data
+    private int bufferSize = STREAM_BUFFER_SIZE;
+    // Write decrypted data through a FileChannel instead of a FileOutputStream
+    private boolean useFileChannel = false;
+    // Symmetric algorithm used to encrypt files, a PGPEncryptedData constant
+    private int cipherAlgorithm = PGPEncryptedData.AES_256;
+    // Add a modification detection packet so changes to the encrypted file are detected
+    private boolean integrityCheck = true;
+    // Compression algorithm, a PGPCompressedData constant
+    private int compressionAlgorithm = PGPCompressedData.ZIP;
+    // Deflate compression level 0-9, or -1 for the default
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    // Don't compress files that are already compressed
+    private boolean skipCompressedFiles = true;
+    // Fail to decrypt files that have no integrity packet, as changes to them can't be detected
+    private boolean requireIntegrityCheck = false;
+    // JCA provider of the symmetric cipher, null to use the BouncyCastle lightweight API
+    private String cipherProvider = null;
+
+    // Leading bytes of file formats that are already compressed
+    private static final byte[][] COMPRESSED_FILE_SIGNATURES = new byte[][] {
+    	{0x1f, (byte) 0x8b},                               // gzip
+    	{0x50, 0x4b, 0x03, 0x04},                          // zip, jar, docx
+    	{0x42, 0x5a, 0x68},                                // bzip2
+    	{(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},       // xz
+    	{0x37, 0x7a, (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c}, // 7z
+    	{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},            // zstd
+    	{(byte) 0x89, 0x50, 0x4e, 0x47},                   // png
+    	{(byte) 0xff, (byte) 0xd8, (byte) 0xff},           // jpeg
+    };
     
     /**
      * Constructor
      * @param keyRingFileName
-     * @param debug
      * @throws Exception
      */
-    public CryptDecryptUtil(final String keyRingFileName, final String passPhrase, final boolean debug) throws Exception {
+    public CryptDecryptUtil(final String keyRingFileName, final String passPhrase) throws Exception {
     	this.fingerPrintCalculator = new BcKeyFingerprintCalculator();
     	this.keyRing = keyRingFileName;
-    	this.enableDebugLog = debug;
     	this.passPhrase = passPhrase;
     }
     
@@ -114,21 +153,23 @@ public class CryptDecryptUtil {
      * @throws PGPException
      * @throws CryptDecryptException 
      */
-    private void initialise(final boolean readPrivateKey) throws FileNotFoundException, IOException, PGPException, CryptDecryptException {
-    	if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.initialise", "Entry");
+    private synchronized void initialise(final boolean readPrivateKey) throws FileNotFoundException, IOException, PGPException, CryptDecryptException {
+    	// Another thread may have initialised while this one waited
+    	if(initialized) return;
+    	if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.initialise", "Entry");
     	
-    	Security.addProvider(new BouncyCastleProvider());
+    	registerProvider();
 
     	// Read and cache public key
     	if(!readPrivateKey) {
-    		if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.initialise", "Reading PublicKey");
+    		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.initialise", "Reading PublicKey");
     		publicKey = readPublicKey();
     	} else {
     		
     	}
     	
     	initialized = true;
-    	if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.initialise", "Exit");
+    	if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.initialise", "Exit");
     }
     
 
@@ -140,6 +181,151 @@ public class CryptDecryptUtil {
 		this.passPhrase = passphrase;
 	}
 
+	/**
+	 * Set size of the buffer used to read and write file data
+	 * @param bufferSize - Size in bytes, ignored if not positive
+	 */
+	public void setBufferSize(final int bufferSize) {
+		if(bufferSize > 0)
+			this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return Size in bytes of the buffer used to read and write file data
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set the symmetric algorithm used to encrypt files
+	 * @param cipher - AES_128, AES_192, AES_256 or TRIPLE_DES
+	 * @throws CryptDecryptException if the algorithm is not supported
+	 */
+	public void setCipher(final String cipher) throws CryptDecryptException {
+		final String name = cipher.trim().toUpperCase();
+		if(name.equals("AES_128")) {
+			cipherAlgorithm = PGPEncryptedData.AES_128;
+		} else if(name.equals("AES_192")) {
+			cipherAlgorithm = PGPEncryptedData.AES_192;
+		} else if(name.equals("AES_256")) {
+			cipherAlgorithm = PGPEncryptedData.AES_256;
+		} else if(name.equals("TRIPLE_DES")) {
+			cipherAlgorithm = PGPEncryptedData.TRIPLE_DES;
+		} else {
+			throw new CryptDecryptException("Unsupported cipher " + cipher);
+		}
+	}
+
+	/**
+	 * @return Name of the symmetric algorithm used to encrypt files, as for setCipher
+	 */
+	public String getCipherName() {
+		return cipherName(cipherAlgorithm);
+	}
+
+	/**
+	 * Name of a symmetric algorithm, as for setCipher
+	 * @param algorithm - PGPEncryptedData constant
+	 */
+	private static String cipherName(final int algorithm) {
+		switch(algorithm) {
+		case PGPEncryptedData.AES_128: return "AES_128";
+		case PGPEncryptedData.AES_192: return "AES_192";
+		case PGPEncryptedData.AES_256: return "AES_256";
+		case PGPEncryptedData.TRIPLE_DES: return "TRIPLE_DES";
+		default: return algorithm < 0 ? null : "Algorithm " + algorithm;
+		}
+	}
+
+	/**
+	 * Add an integrity packet to encrypted files so that changes are detected when decrypting
+	 * @param integrityCheck
+	 */
+	public void setIntegrityCheck(final boolean integrityCheck) {
+		this.integrityCheck = integrityCheck;
+	}
+
+	/**
+	 * Set the algorithm used to compress files before encrypting them
+	 * @param compression - NONE, ZIP, ZLIB or BZIP2
+	 * @param level - Compression level 0-9 for ZIP and ZLIB, -1 for the default
+	 * @throws CryptDecryptException if the algorithm or level is not supported
+	 */
+	public void setCompression(final String compression, final int level) throws CryptDecryptException {
+		final String name = compression.trim().toUpperCase();
+		if(name.equals("NONE")) {
+			compressionAlgorithm = PGPCompressedData.UNCOMPRESSED;
+		} else if(name.equals("ZIP")) {
+			compressionAlgorithm = PGPCompressedData.ZIP;
+		} else if(name.equals("ZLIB")) {
+			compressionAlgorithm = PGPCompressedData.ZLIB;
+		} else if(name.equals("BZIP2")) {
+			compressionAlgorithm = PGPCompressedData.BZIP2;
+		} else {
+			throw new CryptDecryptException("Unsupported compression " + compression);
+		}
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new CryptDecryptException("Unsupported compression level " + level);
+		}
+		compressionLevel = level;
+	}
+
+	/**
+	 * Don't compress files whose content is already compressed, for example zip or jpeg files
+	 * @param skipCompressedFiles
+	 */
+	public void setSkipCompressedFiles(final boolean skipCompressedFiles) {
+		this.skipCompressedFiles = skipCompressedFiles;
+	}
+
+	/**
+	 * Fail to decrypt files that have no integrity packet. Changes to such files can't
+	 * be detected, so by default they are decrypted and a message is logged.
+	 * @param requireIntegrityCheck
+	 */
+	public void setRequireIntegrityCheck(final boolean requireIntegrityCheck) {
+		this.requireIntegrityCheck = requireIntegrityCheck;
+	}
+
+	/**
+	 * Set the JCA provider that encrypts and decrypts file data, for example SunJCE
+	 * to use the JDK's AES implementation, which runs on the processor's AES
+	 * instructions where they are available.
+	 * Files without an integrity packet are always encrypted and decrypted with the
+	 * BouncyCastle lightweight API.
+	 * @param provider - Name of the provider, or null or empty to use the BouncyCastle
+	 *                   lightweight API (the default)
+	 * @throws CryptDecryptException if the provider is not installed
+	 */
+	public void setCipherProvider(final String provider) throws CryptDecryptException {
+		if(provider == null || provider.trim().length() == 0) {
+			this.cipherProvider = null;
+			return;
+		}
+		registerProvider();
+		if(Security.getProvider(provider.trim()) == null)
+			throw new CryptDecryptException("Security provider " + provider + " is not installed.");
+		this.cipherProvider = provider.trim();
+	}
+
+	/**
+	 * Register the BouncyCastle provider, once for the agent. Adding it again for
+	 * each transfer would only search the installed providers every time.
+	 */
+	private static synchronized void registerProvider() {
+		if(Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+			Security.addProvider(new BouncyCastleProvider());
+	}
+
+	/**
+	 * Write decrypted files through a FileChannel using a direct buffer
+	 * @param useFileChannel
+	 */
+	public void setUseFileChannel(final boolean useFileChannel) {
+		this.useFileChannel = useFileChannel;
+	}
+
     /**
      * Reads the public key from the specified key file.
      * 
@@ -152,13 +338,11 @@ public class CryptDecryptUtil {
      * @throws CryptDecryptException 
      */
     private PGPPublicKey readPublicKey() throws IOException, PGPException, CryptDecryptException {
-    	if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.readPublicKey", "Entry");
+    	if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.readPublicKey", "Entry");
         PGPPublicKey publicKey = null;
 
-		InputStream publicKeyStream = new FileInputStream(keyRing);
-
-    	// Read the key file using BouncyCastle utility class to build a collection.
-        PGPPublicKeyRingCollection keyRingCollection = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(publicKeyStream), fingerPrintCalculator);
+    	// Get the collection of key rings in the key file, parsed once and cached until the file changes.
+        PGPPublicKeyRingCollection keyRingCollection = KeyRingCache.getPublicKeyRings(keyRing, fingerPrintCalculator);
 
         // Iterate through the key rings to find a key that can be used for encryption
         Iterator<PGPPublicKeyRing> rIt = keyRingCollection.getKeyRings();
@@ -183,140 +367,212 @@ public class CryptDecryptUtil {
             throw new CryptDecryptException("KeyID " + publicKey.getKeyID() + " not flagged for encryption.");
         }
 
-        if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.readPublicKey", "Exit");
+        if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.readPublicKey", "Exit");
         return publicKey;
     }
 
-    /**
-     * Load a secret key ring collection from keyIn and find the private key corresponding to
-     * keyID if it exists.
-     *
-     * @param keyIn input stream representing a key ring collection.
-     * @param keyID keyID we want.
-     * @param pass passphrase to decrypt secret key with.
-     * @return
-     * @throws IOException
-     * @throws PGPException
-     * @throws NoSuchProviderException
-     */
-    private PGPPrivateKey findPrivateKey(InputStream keyIn, long keyID, char[] pass,  KeyFingerPrintCalculator fingerPrintCalculator)
-    	throws IOException, PGPException, NoSuchProviderException {
-        PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), fingerPrintCalculator);
-        return findPrivateKey(pgpSec.getSecretKey(keyID), pass);
-
-    }
-
-    /**
-     * Get private key using the given passphrase
-     * @param pgpSecKey The secret key
-     * @param pass passphrase to decrypt secret key with
-     * @return Private key
-     * @throws PGPException
-     */
-    private PGPPrivateKey findPrivateKey(PGPSecretKey pgpSecKey, char[] pass)
-    	throws PGPException {
-    	if (pgpSecKey == null) return null;
-
-        PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider()).build(pass);
-        return pgpSecKey.extractPrivateKey(decryptor);
-    }
-
     /**
      * Decrypt the given encrypted file.
      * 
-     * @param in - Stream pointing to encrypted file
-     * @param out - Stream pointing to decrypt file
-     * @param keyIn - Private key
-     * @param passwd - Password for the private key
-     * @param fingerPrintCalculator - Algorithm to be used for calculating fingerprint.
-     * @throws Exception
+     * @param encryptedFile - Name of the encrypted file
+     * @param decryptedFile - Name of the file to write decrypted data to
+     * @throws Exception if the file could not be decrypted, the decrypted file is deleted
      */
 	public void decryptFile(final String encryptedFile, final String decryptedFile) throws Exception {		
-		if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.decryptFile", "Entry");
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.decryptFile", "Entry");
     	
 		InputStream encryptedStream = null;
-		OutputStream decryptedStream = null;
-		InputStream privateKeyStream = null;
 		
 		try {
-			// Do initialization if not done already
-			privateKeyStream = new FileInputStream(keyRing);
-			
-			// Get a stream for writing decrypted file
-	        decryptedStream = new FileOutputStream(decryptedFile);
 	        // Get the stream for encrypted file
-	        encryptedStream = org.bouncycastle.openpgp.PGPUtil.getDecoderStream(new FileInputStream(encryptedFile));
-	        // Initialize factory to read PGP objects such as keys, key rings and key ring collections, or PGP encrypted data.
-	        PGPObjectFactory pgpFactory = new PGPObjectFactory(encryptedStream, fingerPrintCalculator);
-
-	        PGPEncryptedDataList encryptedObjectList;
-	        Object o = pgpFactory.nextObject();
-	        // the first object might be a PGP marker packet.
-	        if (o instanceof  PGPEncryptedDataList) {
-	        	encryptedObjectList = (PGPEncryptedDataList) o;
-	        } else {
-	        	encryptedObjectList = (PGPEncryptedDataList) pgpFactory.nextObject();
-	        }
+	        encryptedStream = new BufferedInputStream(new FileInputStream(encryptedFile), bufferSize);
+	        DecryptedMessage message = openMessage(encryptedStream);
+
+	        long startTime = System.nanoTime();
+	        long bytes = useFileChannel ? copyToChannel(message.literalData, decryptedFile)
+	        		: copyToStream(message.literalData, decryptedFile);
+	        message.verify();
+
+	        // The data has been forced to disk, check all of it is there
+	        final long fileSize = new File(decryptedFile).length();
+	        if(fileSize != bytes)
+	        	throw new IOException("Decrypted file " + decryptedFile + " has " + fileSize + " bytes, " + bytes + " bytes were decrypted");
+	        if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("CryptDecryptUtil.decryptFile", decryptedFile, bytes, System.nanoTime() - startTime, message.getCipherName());
+		}catch (Exception ex) {
+			Trace.logException("CryptDecryptUtil.decryptFile", ex);
+			// Don't leave a partly decrypted file behind
+			new File(decryptedFile).delete();
+			throw ex;
+		}finally {
+			if(encryptedStream != null)
+				encryptedStream.close();
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.decryptFile", "Exit");
+		}
+    }
 
-	        // Find the private key with the given list of encrypted objects
-	        PGPPublicKeyEncryptedData pbe = null;
-	        PGPPrivateKey secretKey = null;
+	/**
+	 * Decrypt an encrypted stream, for example data as it is received by the destination
+	 * agent. The integrity of the message is checked after all of it has been written.
+	 * @param encryptedStream - Encrypted data
+	 * @param decryptedStream - Stream to write the decrypted data to, it is not closed
+	 * @return number of bytes decrypted
+	 * @throws Exception if the data could not be decrypted or failed the integrity check
+	 */
+	public long decryptStream(final InputStream encryptedStream, final OutputStream decryptedStream) throws Exception {
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.decryptStream", "Entry");
+		DecryptedMessage message = openMessage(encryptedStream);
+
+		long startTime = System.nanoTime();
+		long bytes = 0;
+		byte[] buffer = new byte[bufferSize];
+		int count;
+		while((count = readFully(message.literalData, buffer)) > 0) {
+			decryptedStream.write(buffer, 0, count);
+			bytes += count;
+		}
+		message.verify();
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("CryptDecryptUtil.decryptStream", null, bytes, System.nanoTime() - startTime, message.getCipherName());
+		return bytes;
+	}
 
-	        @SuppressWarnings("unchecked")
-			Iterator<PGPPublicKeyEncryptedData> it = encryptedObjectList.getEncryptedDataObjects();
-	        
-	        while (secretKey == null && it.hasNext()) {
-	            pbe = it.next();
-	            secretKey = findPrivateKey(privateKeyStream, pbe.getKeyID(), passPhrase.toCharArray(), fingerPrintCalculator);
-	        }
+	/**
+	 * Read the encrypted message up to the start of its literal data
+	 * @param in - Encrypted data
+	 * @return The literal data and the encrypted data it is read from
+	 * @throws Exception
+	 */
+	private DecryptedMessage openMessage(final InputStream in) throws Exception {
+        InputStream encryptedStream = PGPUtil.getDecoderStream(in);
+        // Initialize factory to read PGP objects such as keys, key rings and key ring collections, or PGP encrypted data.
+        PGPObjectFactory pgpFactory = new PGPObjectFactory(encryptedStream, fingerPrintCalculator);
+
+        PGPEncryptedDataList encryptedObjectList;
+        Object o = pgpFactory.nextObject();
+        // the first object might be a PGP marker packet.
+        if (o instanceof  PGPEncryptedDataList) {
+        	encryptedObjectList = (PGPEncryptedDataList) o;
+        } else {
+        	encryptedObjectList = (PGPEncryptedDataList) pgpFactory.nextObject();
+        }
 
-	        if (secretKey == null) {
-	            throw new IllegalArgumentException("Secret key for message not found.");
-	        } else {
-	        	if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.decryptFile", "Key found");	        	
-	        }
-	        
-	        InputStream clear = pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(secretKey));
-	        PGPObjectFactory plainFact = new PGPObjectFactory(clear, fingerPrintCalculator);
-	        Object message = plainFact.nextObject();
-
-	        if (message instanceof  PGPCompressedData) {
-	            PGPCompressedData cData = (PGPCompressedData) message;
-	            PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), fingerPrintCalculator);
-	            message = pgpFact.nextObject();
-	        }
+        // Find the private key with the given list of encrypted objects
+        PGPPublicKeyEncryptedData pbe = null;
+        PGPPrivateKey secretKey = null;
 
-	        if (message instanceof  PGPLiteralData) {
-	            PGPLiteralData ld = (PGPLiteralData) message;
-	            InputStream unc = ld.getInputStream();
-	            int ch;
+        @SuppressWarnings("unchecked")
+		Iterator<PGPPublicKeyEncryptedData> it = encryptedObjectList.getEncryptedDataObjects();
+        
+        while (secretKey == null && it.hasNext()) {
+            pbe = it.next();
+            // Key rings and unlocked keys are cached across files and transfers
+            secretKey = KeyRingCache.getPrivateKey(keyRing, pbe.getKeyID(), passPhrase.toCharArray(), fingerPrintCalculator);
+        }
 
-	            while ((ch = unc.read()) >= 0) {
-	            	decryptedStream.write(ch);
-	            }
-	        } else if (message instanceof  PGPOnePassSignatureList) {
-	            throw new PGPException("Encrypted message contains a signed message - not literal data.");
-	        } else {
-	            throw new PGPException("Message is not a simple encrypted file - type unknown.");
-	        }
+        if (secretKey == null) {
+            throw new IllegalArgumentException("Secret key for message not found.");
+        } else {
+        	if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.openMessage", "Key found");	        	
+        }
+        
+        checkIntegrityProtected(pbe);
+
+        // The session key is decrypted with BouncyCastle, the file data with the configured provider
+        PublicKeyDataDecryptorFactory decryptorFactory;
+        if(cipherProvider == null || !pbe.isIntegrityProtected()) {
+        	decryptorFactory = new BcPublicKeyDataDecryptorFactory(secretKey);
+        } else {
+        	decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
+        			.setProvider(BouncyCastleProvider.PROVIDER_NAME).setContentProvider(cipherProvider).build(secretKey);
+        }
+        AlgorithmRecorder recorder = new AlgorithmRecorder(decryptorFactory);
+        InputStream clear = pbe.getDataStream(recorder);
+        PGPObjectFactory plainFact = new PGPObjectFactory(clear, fingerPrintCalculator);
+        Object message = plainFact.nextObject();
+
+        if (message instanceof  PGPCompressedData) {
+            PGPCompressedData cData = (PGPCompressedData) message;
+            PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), fingerPrintCalculator);
+            message = pgpFact.nextObject();
+        }
+
+        if (message instanceof  PGPLiteralData) {
+            return new DecryptedMessage(pbe, ((PGPLiteralData) message).getInputStream(), recorder.algorithm);
+        } else if (message instanceof  PGPOnePassSignatureList) {
+            throw new PGPException("Encrypted message contains a signed message - not literal data.");
+        } else {
+            throw new PGPException("Message is not a simple encrypted file - type unknown.");
+        }
+	}
+
+	/**
+	 * The literal data of an encrypted message and the encrypted data it is read from
+	 */
+	private static class DecryptedMessage {
+		final PGPPublicKeyEncryptedData encryptedData;
+		final InputStream literalData;
+		// Symmetric algorithm of the message, a PGPEncryptedData constant
+		final int algorithm;
+
+		DecryptedMessage(final PGPPublicKeyEncryptedData encryptedData, final InputStream literalData, final int algorithm) {
+			this.encryptedData = encryptedData;
+			this.literalData = literalData;
+			this.algorithm = algorithm;
+		}
+
+		String getCipherName() {
+			return cipherName(algorithm);
+		}
 
-	        if (pbe.isIntegrityProtected()) {
-	            if (!pbe.verify()) {
+		/**
+		 * Check the integrity packet, after all of the literal data has been read
+		 * @throws PGPException if the message has been changed
+		 * @throws IOException
+		 */
+		void verify() throws PGPException, IOException {
+	        if (encryptedData.isIntegrityProtected()) {
+	            if (!encryptedData.verify()) {
 	            	throw new PGPException("Message failed integrity check");
 	            }
 	        }
-		}catch (Exception ex) {
-			Trace.logException("CryptDecryptUtil.decryptFile", ex);
-		}finally {
-			if(decryptedStream != null)
-				decryptedStream.close();
-			if(encryptedStream != null)
-				encryptedStream.close();
-			if(privateKeyStream != null)
-				privateKeyStream.close();
-			if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.decryptFile", "Exit");
 		}
-    }
+	}
+
+	/**
+	 * Records the symmetric algorithm of a message as its data decryptor is created,
+	 * for the message's timings, without decrypting the session key again
+	 */
+	private static class AlgorithmRecorder implements PublicKeyDataDecryptorFactory {
+		private final PublicKeyDataDecryptorFactory factory;
+		int algorithm = -1;
+
+		AlgorithmRecorder(final PublicKeyDataDecryptorFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public byte[] recoverSessionData(final int keyAlgorithm, final byte[][] secKeyData) throws PGPException {
+			return factory.recoverSessionData(keyAlgorithm, secKeyData);
+		}
+
+		@Override
+		public PGPDataDecryptor createDataDecryptor(final boolean withIntegrityPacket, final int encAlgorithm, final byte[] key) throws PGPException {
+			algorithm = encAlgorithm;
+			return factory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+		}
+	}
+
+	/**
+	 * Check the message can be verified before any of it is decrypted
+	 * @param encryptedData
+	 * @throws PGPException if it has no integrity packet and one is required
+	 */
+	private void checkIntegrityProtected(final PGPPublicKeyEncryptedData encryptedData) throws PGPException {
+		if(encryptedData.isIntegrityProtected())
+			return;
+		if(requireIntegrityCheck)
+			throw new PGPException("Message has no integrity packet, changes to it can't be detected");
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("CryptDecryptUtil.checkIntegrityProtected", "Message has no integrity packet, changes to it can't be detected");
+	}
 
 	/**
 	 * Encrypt the given file 
@@ -329,34 +585,266 @@ public class CryptDecryptUtil {
 	 */
     public void encryptFile(final String unencryptedFileName, final String encryptedFileName)
         throws IOException, NoSuchProviderException, PGPException, CryptDecryptException {
-    	if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.encryptFile", "Entry");
+    	if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.encryptFile", "Entry");
+
+    	File unencryptedFile = new File(unencryptedFileName);
+    	InputStream plainStream = null;
+    	OutputStream encryptedFile = null;
+    	OutputStream encryptor = null;
+
+    	try {
+    		plainStream = new FileInputStream(unencryptedFile);
+    		encryptedFile = new BufferedOutputStream(new FileOutputStream(encryptedFileName), bufferSize);
+    		encryptor = openEncryptor(encryptedFile, unencryptedFile);
+
+    		long startTime = System.nanoTime();
+    		long bytes = 0;
+    		byte[] buffer = new byte[bufferSize];
+    		int count;
+    		while((count = plainStream.read(buffer)) > 0) {
+    			encryptor.write(buffer, 0, count);
+    			bytes += count;
+    		}
+
+    		encryptor.close();
+    		encryptor = null;
+    		encryptedFile.close();
+    		encryptedFile = null;
+    		if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("CryptDecryptUtil.encryptFile", unencryptedFileName, bytes, System.nanoTime() - startTime, getCipherName());
+    	} finally {
+    		closeQuietly(encryptor);
+    		closeQuietly(encryptedFile);
+    		closeQuietly(plainStream);
+    	}
+
+        if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("CryptDecryptUtil.encryptFile", "Exit");
+    }
 
+    /**
+     * Open a stream that encrypts the data written to it and writes the encrypted data
+     * to the given stream. Closing the returned stream writes the final packets but
+     * does not close the given stream.
+     * @param out - Stream to write the encrypted data to
+     * @param plainFile - File being encrypted. Its name and time are stored in the message
+     *                    and its content decides if it is compressed.
+     * @return Stream to write the unencrypted data to
+     * @throws IOException
+     * @throws PGPException
+     * @throws CryptDecryptException
+     */
+    public OutputStream openEncryptor(final OutputStream out, final File plainFile) throws IOException, PGPException, CryptDecryptException {
     	// Initialise PGP provider and read public key
     	if(!initialized) initialise(false);
-		
-		FileOutputStream encrytedFile = new FileOutputStream(encryptedFileName);
-		        
-		// Compress the input plain text file in ZIP format.
-    	ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        PGPUtil.writeFileToLiteralData(comData.open(bOut), PGPLiteralData.BINARY, new File(unencryptedFileName) );
-        comData.close();
-
-        // Encrypt the file using Triple-DES algorithm
-        BcPGPDataEncryptorBuilder dataEncryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.TRIPLE_DES);
-        dataEncryptor.setWithIntegrityPacket(false);
-        dataEncryptor.setSecureRandom(new SecureRandom());
-        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(dataEncryptor);
-        encryptedDataGenerator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(publicKey));
-        byte[] bytes = bOut.toByteArray();
-        OutputStream cOut = encryptedDataGenerator.open(encrytedFile, bytes.length);
-        cOut.write(bytes);
-        cOut.close();
-        encrytedFile.close();
-        
-        if(enableDebugLog)Trace.logInfo("CryptDecryptUtil.encryptFile", "Exit");
+
+    	OutputStream encryptedOut = null;
+    	OutputStream compressedOut = null;
+    	try {
+    		// Encrypt the file using the configured algorithm, AES-256 with an integrity packet by default
+    		// Without an integrity packet OpenPGP uses its own CFB variant, which only the
+    		// lightweight API implements, so the provider is only used with the packet
+    		PGPDataEncryptorBuilder dataEncryptor;
+    		if(cipherProvider == null || !integrityCheck) {
+    			dataEncryptor = new BcPGPDataEncryptorBuilder(cipherAlgorithm)
+    					.setWithIntegrityPacket(integrityCheck).setSecureRandom(new SecureRandom());
+    		} else {
+    			dataEncryptor = new JcePGPDataEncryptorBuilder(cipherAlgorithm).setProvider(cipherProvider)
+    					.setWithIntegrityPacket(integrityCheck).setSecureRandom(new SecureRandom());
+    		}
+    		PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(dataEncryptor);
+    		encryptedDataGenerator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(publicKey));
+
+    		// Each stage writes partial length packets through a fixed buffer, so the
+    		// file is streamed literal -> compressed -> encrypted without knowing its
+    		// final size and memory use does not depend on the size of the file.
+    		encryptedOut = encryptedDataGenerator.open(out, new byte[STREAM_BUFFER_SIZE]);
+
+    		// Compress the input plain text file unless it is already compressed
+    		OutputStream literalTarget = encryptedOut;
+    		if(compressionAlgorithm != PGPCompressedData.UNCOMPRESSED) {
+    			if(skipCompressedFiles && isCompressedFile(plainFile)) {
+    				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("CryptDecryptUtil.openEncryptor", "Already compressed, compression skipped");
+    			} else {
+    				PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(compressionAlgorithm, compressionLevel);
+    				compressedOut = comData.open(encryptedOut, new byte[STREAM_BUFFER_SIZE]);
+    				literalTarget = compressedOut;
+    			}
+    		}
+
+    		PGPLiteralDataGenerator literalData = new PGPLiteralDataGenerator();
+    		OutputStream literalOut = literalData.open(literalTarget, PGPLiteralData.BINARY, plainFile.getName(),
+    				new Date(plainFile.lastModified()), new byte[STREAM_BUFFER_SIZE]);
+    		return new EncryptorStream(literalOut, compressedOut, encryptedOut);
+    	} catch (IOException ex) {
+    		closeQuietly(compressedOut);
+    		closeQuietly(encryptedOut);
+    		throw ex;
+    	} catch (PGPException ex) {
+    		closeQuietly(compressedOut);
+    		closeQuietly(encryptedOut);
+    		throw ex;
+    	}
+    }
+
+    /**
+     * Writes to the literal data stage of an encrypted message. Closing it closes
+     * each stage from the innermost out, as each one writes its final packet.
+     */
+    private static class EncryptorStream extends OutputStream {
+    	private final OutputStream literalOut;
+    	private final OutputStream compressedOut;
+    	private final OutputStream encryptedOut;
+    	private boolean closed = false;
+
+    	EncryptorStream(final OutputStream literalOut, final OutputStream compressedOut, final OutputStream encryptedOut) {
+    		this.literalOut = literalOut;
+    		this.compressedOut = compressedOut;
+    		this.encryptedOut = encryptedOut;
+    	}
+
+    	@Override
+    	public void write(final int b) throws IOException {
+    		literalOut.write(b);
+    	}
+
+    	@Override
+    	public void write(final byte[] b, final int off, final int len) throws IOException {
+    		literalOut.write(b, off, len);
+    	}
+
+    	@Override
+    	public void close() throws IOException {
+    		if(closed)
+    			return;
+    		closed = true;
+    		try {
+    			literalOut.close();
+    			if(compressedOut != null)
+    				compressedOut.close();
+    		} finally {
+    			encryptedOut.close();
+    		}
+    	}
+    }
+
+    /**
+     * Check the leading bytes of a file for the signature of a compressed file format
+     * @param file - File to check
+     * @return true if the file is already compressed
+     * @throws IOException
+     */
+    private static boolean isCompressedFile(final File file) throws IOException {
+    	byte[] header = new byte[8];
+    	int length = 0;
+    	InputStream in = new FileInputStream(file);
+    	try {
+    		int count;
+    		while(length < header.length && (count = in.read(header, length, header.length - length)) > 0) {
+    			length += count;
+    		}
+    	} finally {
+    		in.close();
+    	}
+
+    	for(byte[] signature : COMPRESSED_FILE_SIGNATURES) {
+    		if(length >= signature.length) {
+    			boolean match = true;
+    			for(int i = 0; match && i < signature.length; i++) {
+    				match = header[i] == signature[i];
+    			}
+    			if(match)
+    				return true;
+    		}
+    	}
+    	return false;
     }
 
+    /**
+     * Copy decrypted data to a file using a FileOutputStream
+     * @param in - Decrypted data
+     * @param fileName - File to write
+     * @return number of bytes copied
+     * @throws IOException
+     */
+    private long copyToStream(final InputStream in, final String fileName) throws IOException {
+    	long bytes = 0;
+    	FileOutputStream out = new FileOutputStream(fileName);
+    	try {
+    		byte[] buffer = new byte[bufferSize];
+    		int count;
+    		while((count = readFully(in, buffer)) > 0) {
+    			out.write(buffer, 0, count);
+    			bytes += count;
+    		}
+    		// On disk before it replaces the encrypted file
+    		out.getFD().sync();
+    	} finally {
+    		out.close();
+    	}
+    	return bytes;
+    }
+
+    /**
+     * Copy decrypted data to a file using a FileChannel
+     * @param in - Decrypted data
+     * @param fileName - File to write
+     * @return number of bytes copied
+     * @throws IOException
+     */
+    private long copyToChannel(final InputStream in, final String fileName) throws IOException {
+    	long bytes = 0;
+    	FileChannel out = FileChannel.open(Paths.get(fileName),
+    			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    	try {
+    		byte[] buffer = new byte[bufferSize];
+    		ByteBuffer directBuffer = ByteBuffer.allocateDirect(bufferSize);
+    		int count;
+    		while((count = readFully(in, buffer)) > 0) {
+    			directBuffer.clear();
+    			directBuffer.put(buffer, 0, count);
+    			directBuffer.flip();
+    			while(directBuffer.hasRemaining()) {
+    				out.write(directBuffer);
+    			}
+    			bytes += count;
+    		}
+    		// On disk before it replaces the encrypted file
+    		out.force(true);
+    	} finally {
+    		out.close();
+    	}
+    	return bytes;
+    }
+
+    /**
+     * Read until the buffer is full or the end of the stream. The PGP streams return
+     * short reads at packet boundaries, this keeps each write a full buffer.
+     * @param in - Stream to read
+     * @param buffer - Buffer to fill
+     * @return number of bytes read, 0 at the end of the stream
+     * @throws IOException
+     */
+    private static int readFully(final InputStream in, final byte[] buffer) throws IOException {
+    	int total = 0;
+    	int count;
+    	while(total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) >= 0) {
+    		total += count;
+    	}
+    	return total;
+    }
+
+    /**
+     * Close a stream after a failure, ignoring any further exception.
+     * @param stream - Stream to close, may be null
+     */
+    private static void closeQuietly(final Closeable stream) {
+    	if(stream != null) {
+    		try {
+    			stream.close();
+    		} catch (IOException ex) {
+    			// The original exception is the one reported
+    		}
+    	}
+    }
 
     /**
      * Can public key be used for encryption
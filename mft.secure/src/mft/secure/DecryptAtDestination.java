@@ -18,9 +18,20 @@ package mft.secure;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.ibm.wmqfte.exitroutine.api.DestinationTransferEndExit;
 import com.ibm.wmqfte.exitroutine.api.FileTransferResult;
@@ -50,6 +61,20 @@ public class DecryptAtDestination implements DestinationTransferEndExit {
 	private boolean decryptAtDestination = false;
 	private String privateKeyFile = null;
 	private String passphrase = null;
+	// Size of the buffer used to copy file data, 0 for the default
+	private int bufferSize = 0;
+	// Write decrypted files through a FileChannel
+	private boolean decryptToFileChannel = false;
+	// JCA provider of the cipher, empty for the BouncyCastle lightweight API
+	private String cipherProvider = "";
+	// Number of files decrypted at the same time
+	private int decryptThreads = 1;
+	// Fail to decrypt files that have no integrity packet
+	private boolean requireIntegrityCheck = false;
+	// Directory of the checkpoints recording the files already decrypted
+	private String checkpointDirectory = System.getProperty("java.io.tmpdir");
+	// Days a checkpoint is kept for a retry after it was last written, 0 to keep it until the transfer succeeds
+	private int checkpointRetentionDays = 7;
 	
 	/* (non-Javadoc)
 	 * @see com.ibm.wmqfte.exitroutine.api.DestinationTransferEndExit#onDestinationTransferEnd(com.ibm.wmqfte.exitroutine.api.TransferExitResult, java.lang.String, java.lang.String, java.util.Map, java.util.Map, java.util.List)
@@ -57,13 +82,14 @@ public class DecryptAtDestination implements DestinationTransferEndExit {
 	@Override
 	public String onDestinationTransferEnd(TransferExitResult transferResult, String sourceAgent, String destinationAgent, Map<String, String> environmentData,
 			Map<String, String> transferMetaData, List<FileTransferResult> fileResults) {		
+		String result = "";
 		try {
 			// Load properties from configuration file, decenc.properties located in the current directory			
 			loadProperties();
-			if(enableDebugLog)Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd", "Entry");			
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("DecryptAtDestination.onDestinationTransferEnd", "Entry");			
 						
 			if(decryptAtDestination) {
-				if(enableDebugLog)Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd","Decrypt at Destination = Y");
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd","Decrypt at Destination = Y");
 				
 				if(privateKeyFile == null) 
 					throw new CryptDecryptException("Private key file property not specified.");
@@ -71,51 +97,167 @@ public class DecryptAtDestination implements DestinationTransferEndExit {
 				if(passphrase == null) 
 					throw new CryptDecryptException("Passphrase for private key file not specified.");
 				
-				CryptDecryptUtil cdu = new CryptDecryptUtil(privateKeyFile, passphrase, enableDebugLog);
-				decrypt(cdu, fileResults);
+				CryptDecryptUtil cdu = new CryptDecryptUtil(privateKeyFile, passphrase);
+				cdu.setBufferSize(bufferSize);
+				cdu.setUseFileChannel(decryptToFileChannel);
+				cdu.setCipherProvider(cipherProvider);
+				cdu.setRequireIntegrityCheck(requireIntegrityCheck);
+				result = decrypt(cdu, fileResults);
 			} else {
-				if(enableDebugLog)Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd","Decrypt at Destination = NO");
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd","Decrypt at Destination = NO");
 			}
 		}catch (Exception ex){
 			Trace.logException("DecryptAtDestination.onDestinationTransferEnd", ex);
 		} finally {
-			if(enableDebugLog)Trace.logInfo("DecryptAtDestination.onDestinationTransferEnd", "Exit");			
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("DecryptAtDestination.onDestinationTransferEnd", "Exit");			
 		}
 		
-		return "";
+		return result;
 	}
 
-	private void decrypt(CryptDecryptUtil cdu, List<FileTransferResult> fileResults) throws CryptDecryptException {
-		if(enableDebugLog)Trace.logInfo("DecryptAtDestination.decrypt", "Entry");
+	/**
+	 * Decrypt the transferred files. Up to decryptThreads files are decrypted at the
+	 * same time. A file that fails to decrypt is left encrypted and the remaining
+	 * files are still decrypted.
+	 *
+	 * The files decrypted are recorded in a checkpoint, so if the exit runs again for
+	 * the same files only those not decrypted yet are decrypted. The checkpoint is
+	 * deleted once all the files have been decrypted.
+	 * @param cdu
+	 * @param fileResults
+	 * @return Result of each file, in the order of the transfer
+	 */
+	private String decrypt(final CryptDecryptUtil cdu, List<FileTransferResult> fileResults) {
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("DecryptAtDestination.decrypt", "Entry");
+		final long startTime = System.nanoTime();
+		final List<String> fileNames = new ArrayList<String>();
+		final List<Future<String>> results = new ArrayList<Future<String>>();
 		
+		final int threads = Math.max(1, Math.min(decryptThreads, fileResults.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int decrypted = 0;
+		int failed = 0;
+		StringBuilder fileStatus = new StringBuilder();
 		try {
 			for ( FileTransferResult destFileSpec : fileResults) {
-				String encryptedFile = destFileSpec.getDestinationFileSpecification();
-				if(enableDebugLog)Trace.logInfo("DecryptAtDestination.decrypt", encryptedFile );
-				
-	            File encryptedDestFile = new File(encryptedFile);
-	            
-	            // Check if the file exists and it is a file and not a directory
-	            if(encryptedDestFile.exists() && encryptedDestFile.isFile()) {
-	            	final String decryptedDestFile = encryptedDestFile.getAbsolutePath() +".dec";
-	            	if(enableDebugLog)Trace.logInfo("DecryptAtDestination.decrypt - Decrypted file", decryptedDestFile);
-	            	File decryptedFile = new File (decryptedDestFile);
-	            	
-            		// First encrypt the file
-            		cdu.decryptFile(encryptedFile, decryptedDestFile);
-					// delete the source file
-            		encryptedDestFile.delete();
-            		if(enableDebugLog)Trace.logInfo("DecryptAtDestination.decrypt - Encrypted file deleted", encryptedFile);
-					// rename the encrypted file to source file name 
-            		decryptedFile.renameTo(new File(encryptedFile));
-	            }
+				final String encryptedFile = destFileSpec.getDestinationFileSpecification();
+				if(encryptedFile != null)
+					fileNames.add(encryptedFile);
+			}
+
+			// Checkpoints of transfers that failed and were never retried
+			int expired = DecryptCheckpoint.deleteExpired(new File(checkpointDirectory), TimeUnit.DAYS.toMillis(checkpointRetentionDays));
+			if(expired > 0 && Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt",
+					"Deleted " + expired + " checkpoint(s) older than " + checkpointRetentionDays + " days");
+
+			DecryptCheckpoint openCheckpoint = null;
+			try {
+				openCheckpoint = new DecryptCheckpoint(new File(checkpointDirectory), fileNames);
+			} catch (IOException ex) {
+				// Decrypt without a checkpoint, a retry then fails for the files already decrypted
+				Trace.logException("DecryptAtDestination.decrypt checkpoint", ex);
+			}
+			final DecryptCheckpoint checkpoint = openCheckpoint;
+
+			for (final String encryptedFile : fileNames) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return decryptFile(cdu, checkpoint, encryptedFile);
+					}
+				}));
+			}
+			
+			// Collect the results in transfer order
+			for (int i = 0; i < results.size(); i++) {
+				String status = null;
+				try {
+					status = results.get(i).get();
+					if(status == null)
+						continue;
+					decrypted++;
+				} catch (ExecutionException ex) {
+					failed++;
+					status = "failed " + ex.getCause();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					failed++;
+					status = "interrupted";
+				}
+				fileStatus.append("; ").append(fileNames.get(i)).append(" ").append(status);
 			}
-		}catch (Exception ex) {
-			Trace.logException ("DecryptAtDestination.decrypt", ex);
-        	throw new CryptDecryptException("Failed to decrypt file " + ex);
-		} finally{
-			if(enableDebugLog)Trace.logInfo("DecryptAtDestination.decrypt", "Exit");			
+
+			// Keep the checkpoint while any file still has to be decrypted
+			if(failed == 0 && checkpoint != null)
+				checkpoint.delete();
+		} finally {
+			executor.shutdown();
 		}
+		
+		String result = "Decrypted " + decrypted + " file(s), " + failed + " failed" + fileStatus;
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt", "Threads " + threads,
+				"Time " + (System.nanoTime() - startTime) / 1000000 + "ms", result);
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("DecryptAtDestination.decrypt", "Exit");
+		return result;
+	}
+	
+	/**
+	 * Decrypt one file and replace it with the decrypted file. The file is decrypted to
+	 * a temporary file, which only replaces it once its integrity and size have been
+	 * verified and it has been forced to disk.
+	 * @param cdu
+	 * @param checkpoint - Records the files decrypted, null if there is no checkpoint
+	 * @param encryptedFile - Name of the file
+	 * @return Status of the file, or null if it is not a file
+	 * @throws Exception if the file could not be decrypted, it is left encrypted
+	 */
+	private String decryptFile(final CryptDecryptUtil cdu, final DecryptCheckpoint checkpoint, final String encryptedFile) throws Exception {
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt", encryptedFile );
+		
+		File encryptedDestFile = new File(encryptedFile);
+		
+		// Check if the file exists and it is a file and not a directory
+		if(!encryptedDestFile.exists() || !encryptedDestFile.isFile())
+			return null;
+
+		// Decrypted by an earlier run of the exit for this transfer
+		if(checkpoint != null && checkpoint.isComplete(encryptedDestFile)) {
+			if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt", encryptedFile, "Already decrypted");
+			return "already decrypted";
+		}
+		
+		final String decryptedDestFile = encryptedDestFile.getAbsolutePath() +".dec";
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt - Decrypted file", decryptedDestFile);
+		File decryptedFile = new File (decryptedDestFile);
+		final long startTime = System.nanoTime();
+		
+		try {
+			// First decrypt the file, the decrypted file is deleted if it fails
+			cdu.decryptFile(encryptedFile, decryptedDestFile);
+
+			// Record the file before it is replaced. If the agent stops before the
+			// replace, the encrypted file doesn't match the record and is decrypted again.
+			if(checkpoint != null)
+				checkpoint.complete(encryptedDestFile, decryptedFile.length(), decryptedFile.lastModified());
+
+			// Replace the encrypted file with the decrypted file in one step, so there is
+			// always either the encrypted or the decrypted file
+			try {
+				Files.move(decryptedFile.toPath(), encryptedDestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(decryptedFile.toPath(), encryptedDestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (Exception ex) {
+			Trace.logException ("DecryptAtDestination.decrypt " + encryptedFile, ex);
+			decryptedFile.delete();
+			throw ex;
+		}
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptAtDestination.decrypt - Encrypted file replaced", encryptedFile);
+		
+		final long nanos = System.nanoTime() - startTime;
+		final long millis = nanos / 1000000;
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("DecryptAtDestination.decrypt", encryptedFile, encryptedDestFile.length(), nanos, null);
+		return "decrypted in " + millis + "ms";
 	}
 	
 	/**
@@ -136,6 +278,7 @@ public class DecryptAtDestination implements DestinationTransferEndExit {
 			if((propDebugLog != null) && (propDebugLog.equalsIgnoreCase("true"))) {
 				enableDebugLog = true;
 			}
+			Trace.configure(configurationProperties, enableDebugLog);
 
 			// Do encryption of file if asked for
 			String propEncryptAtSource= configurationProperties.getProperty("decryptAtDestination", "false");
@@ -145,6 +288,33 @@ public class DecryptAtDestination implements DestinationTransferEndExit {
 
 			// Name of the file containing the public key
 			privateKeyFile = configurationProperties.getProperty("privateKeyFile", null);
+
+			// Size of the buffer used to copy file data
+			bufferSize = Integer.parseInt(configurationProperties.getProperty("bufferSize", "0").trim());
+
+			// Number of files decrypted at the same time
+			decryptThreads = Integer.parseInt(configurationProperties.getProperty("decryptThreads", "1").trim());
+
+			// Write decrypted files through a FileChannel
+			String propFileChannel = configurationProperties.getProperty("decryptToFileChannel", "false");
+			if((propFileChannel != null) && (propFileChannel.equalsIgnoreCase("true"))) {
+				decryptToFileChannel = true;
+			}
+
+			// JCA provider of the cipher, for example SunJCE to use the JDK's AES
+			cipherProvider = configurationProperties.getProperty("cipherProvider", "");
+
+			// Fail to decrypt files that have no integrity packet
+			String propRequireIntegrity = configurationProperties.getProperty("requireIntegrityCheck", "false");
+			if((propRequireIntegrity != null) && (propRequireIntegrity.equalsIgnoreCase("true"))) {
+				requireIntegrityCheck = true;
+			}
+
+			// Directory of the checkpoints recording the files already decrypted
+			String propCheckpointDirectory = configurationProperties.getProperty("checkpointDirectory", "");
+			if(propCheckpointDirectory.trim().length() > 0)
+				checkpointDirectory = propCheckpointDirectory.trim();
+			checkpointRetentionDays = Integer.parseInt(configurationProperties.getProperty("checkpointRetentionDays", "7").trim());
 			
 			// Get passphrase for private keystore. The passphrase will be in stored as a key-value
 			// pair, passphrase=<some password> in cryptdecrypt.pwd file located in user's home 
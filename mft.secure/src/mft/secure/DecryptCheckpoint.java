@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DecryptCheckpoint - Records the files of a transfer that have been decrypted, so
+ * that when the exit runs again for the same files, for example after the agent is
+ * restarted, the files already decrypted are skipped rather than failing as not
+ * encrypted.
+ *
+ * A file is recorded with the size and modification time of its decrypted data
+ * before that replaces the encrypted file. A file is only skipped if it still has
+ * that size and time, so a file that was not replaced, or has been replaced again
+ * by a later transfer, is decrypted.
+ *
+ * The checkpoint is named after the list of files of the transfer and is deleted
+ * once all of them have been decrypted. The checkpoint of a transfer with a file
+ * that failed is kept for a retry, and deleted by deleteExpired once it has not
+ * been written to for the retention period.
+ */
+public class DecryptCheckpoint {
+	private static final String PREFIX = "decenc-";
+	private static final String SUFFIX = ".checkpoint";
+	// Expired checkpoints are looked for at most once in this time
+	private static final long EXPIRY_CHECK_INTERVAL = 60 * 60 * 1000L;
+	private static long lastExpiryCheck = 0;
+
+	private final File checkpointFile;
+	// Decrypted files keyed by path, size and modification time
+	private final Map<String, String> completed = new HashMap<String, String>();
+
+	/**
+	 * Open the checkpoint of a transfer, reading the files already recorded
+	 * @param directory - Directory the checkpoint is kept in
+	 * @param fileNames - Files of the transfer
+	 * @throws IOException
+	 */
+	public DecryptCheckpoint(final File directory, final List<String> fileNames) throws IOException {
+		this.checkpointFile = new File(directory, PREFIX + digest(fileNames) + SUFFIX);
+		if(!checkpointFile.exists())
+			return;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				// size <tab> last modified <tab> path. A line cut short by a crash is ignored.
+				String[] fields = line.split("\t", 3);
+				if(fields.length == 3)
+					completed.put(fields[2], fields[0] + "\t" + fields[1]);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param file - File of the transfer
+	 * @return true if the file has been decrypted and not changed since
+	 */
+	public synchronized boolean isComplete(final File file) {
+		String state = completed.get(file.getAbsolutePath());
+		return state != null && file.exists() && state.equals(file.length() + "\t" + file.lastModified());
+	}
+
+	/**
+	 * Record that a file has been decrypted, before the decrypted data replaces it.
+	 * The record is forced to disk.
+	 * @param file - File of the transfer
+	 * @param size - Size of the decrypted data
+	 * @param lastModified - Modification time of the decrypted data
+	 * @throws IOException
+	 */
+	public synchronized void complete(final File file, final long size, final long lastModified) throws IOException {
+		final String state = size + "\t" + lastModified;
+		FileOutputStream out = new FileOutputStream(checkpointFile, true);
+		try {
+			out.write((state + "\t" + file.getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		completed.put(file.getAbsolutePath(), state);
+	}
+
+	/**
+	 * Delete the checkpoint, once all the files of the transfer have been decrypted
+	 */
+	public synchronized void delete() {
+		checkpointFile.delete();
+		completed.clear();
+	}
+
+	/**
+	 * Delete the checkpoints in a directory that have not been written to for the
+	 * given time. Does nothing if called again within an hour.
+	 * @param directory - Directory the checkpoints are kept in
+	 * @param maxAgeMillis - Age of the checkpoints to delete, 0 to keep them
+	 * @return Number of checkpoints deleted
+	 */
+	public static int deleteExpired(final File directory, final long maxAgeMillis) {
+		final long now = System.currentTimeMillis();
+		synchronized(DecryptCheckpoint.class) {
+			if(maxAgeMillis <= 0 || now - lastExpiryCheck < EXPIRY_CHECK_INTERVAL)
+				return 0;
+			lastExpiryCheck = now;
+		}
+
+		int deleted = 0;
+		File[] checkpoints = directory.listFiles();
+		if(checkpoints == null)
+			return 0;
+		for(File checkpoint : checkpoints) {
+			String name = checkpoint.getName();
+			if(name.startsWith(PREFIX) && name.endsWith(SUFFIX) && checkpoint.isFile()
+					&& now - checkpoint.lastModified() > maxAgeMillis && checkpoint.delete())
+				deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return The checkpoint file
+	 */
+	public File getFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * Digest of the files of a transfer, which names its checkpoint
+	 */
+	private static String digest(final List<String> fileNames) throws IOException {
+		List<String> sorted = new ArrayList<String>(fileNames);
+		Collections.sort(sorted);
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for(String fileName : sorted) {
+				md.update(new File(fileName).getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+			}
+			StringBuilder sb = new StringBuilder();
+			for(byte b : md.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("Unable to name checkpoint", ex);
+		}
+	}
+}
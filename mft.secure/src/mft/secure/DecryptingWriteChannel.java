@@ -0,0 +1,230 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitChannel;
+import com.ibm.wmqfte.exitroutine.api.IOExitLock;
+import com.ibm.wmqfte.exitroutine.api.RecoverableIOException;
+
+/**
+ * Writes encrypted data to a local file decrypted. The data written by the agent is
+ * passed to a thread that decrypts it into the file, so the file is decrypted as it is
+ * transferred and the encrypted file is never written to disk.
+ *
+ * The integrity of the file is only known once all of it has been written, so close()
+ * fails and deletes the file if it could not be decrypted or has been changed.
+ */
+public class DecryptingWriteChannel implements IOExitChannel {
+	// Number of blocks written by the agent and waiting to be decrypted
+	private static final int QUEUE_SIZE = 16;
+	// Marks the end of the encrypted data
+	private static final byte[] END = new byte[0];
+
+	private final File file;
+	private final FileOutputStream fileStream;
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+	private final Thread decryptThread;
+	private final long startTime = System.nanoTime();
+	private volatile Exception failure = null;
+	private volatile long decryptedBytes = 0;
+	private long encryptedBytes = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param cdu - Decrypts the data
+	 * @param file - File to write
+	 * @throws IOException
+	 */
+	public DecryptingWriteChannel(final CryptDecryptUtil cdu, final File file) throws IOException {
+		this.file = file;
+		this.fileStream = new FileOutputStream(file);
+		final OutputStream decrypted = new BufferedOutputStream(fileStream, cdu.getBufferSize());
+
+		decryptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					decryptedBytes = cdu.decryptStream(new QueueInputStream(), decrypted);
+					decrypted.flush();
+				} catch (Exception ex) {
+					failure = ex;
+				}
+			}
+		}, "DecryptingWriteChannel " + file.getName());
+		decryptThread.setDaemon(true);
+		decryptThread.start();
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		if(closed)
+			throw new IOException(file.getPath() + " is closed");
+		int count = buffer.remaining();
+		if(count == 0)
+			return 0;
+		// The agent reuses its buffer, so the data is copied before it is queued
+		byte[] block = new byte[count];
+		buffer.get(block);
+		put(block);
+		encryptedBytes += count;
+		return count;
+	}
+
+	/**
+	 * Queue a block for the decrypt thread, waiting while it is behind. Fails if the
+	 * decrypt thread has failed or has finished before all of the data is written.
+	 */
+	private void put(final byte[] block) throws IOException {
+		try {
+			while(!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+				if(!decryptThread.isAlive())
+					throw new IOException("Unexpected data after the end of the encrypted message in " + file.getPath());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted writing " + file.getPath());
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null)
+			throw new IOException("Unable to decrypt " + file.getPath(), failure);
+	}
+
+	/**
+	 * Wait for the rest of the data to be decrypted. If it could not be decrypted or
+	 * failed the integrity check the file is deleted.
+	 */
+	@Override
+	public void close() throws RecoverableIOException, IOException {
+		if(closed)
+			return;
+		closed = true;
+
+		boolean complete = false;
+		try {
+			checkFailure();
+			put(END);
+			decryptThread.join();
+			checkFailure();
+			// On disk before the agent renames it into place
+			fileStream.getFD().sync();
+			complete = true;
+			if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("DecryptingWriteChannel.close", file.getPath(), decryptedBytes, System.nanoTime() - startTime, null);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted decrypting " + file.getPath());
+		} finally {
+			if(!complete)
+				decryptThread.interrupt();
+			fileStream.close();
+			if(!complete) {
+				// Don't leave a partly decrypted file behind
+				file.delete();
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("DecryptingWriteChannel.close", file.getPath(), "Deleted, not decrypted");
+			}
+		}
+	}
+
+	/**
+	 * Force the data decrypted so far to disk. Data still queued for the decrypt thread
+	 * is written when the channel is closed.
+	 */
+	@Override
+	public void force() throws RecoverableIOException, IOException {
+		checkFailure();
+		fileStream.getFD().sync();
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		throw new IOException(file.getPath() + " is open for write");
+	}
+
+	/**
+	 * The number of encrypted bytes written by the agent
+	 */
+	@Override
+	public long size() throws IOException {
+		return encryptedBytes;
+	}
+
+	@Override
+	public IOExitLock tryLock(boolean shared) throws IOException {
+		FileLock lock = fileStream.getChannel().tryLock();
+		return lock == null ? null : new SecureIOExitLock(lock);
+	}
+
+	/**
+	 * The encrypted data written by the agent, as read by the decrypt thread
+	 */
+	private class QueueInputStream extends InputStream {
+		private byte[] block = null;
+		private int position = 0;
+
+		@Override
+		public int read() throws IOException {
+			if(!nextBlock())
+				return -1;
+			return block[position++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(!nextBlock())
+				return -1;
+			int count = Math.min(len, block.length - position);
+			System.arraycopy(block, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		/**
+		 * Wait for the next block once the current one has been read
+		 * @return false at the end of the encrypted data
+		 */
+		private boolean nextBlock() throws IOException {
+			if(block != null && position < block.length)
+				return true;
+			if(block == END)
+				return false;
+			try {
+				block = queue.take();
+			} catch (InterruptedException ex) {
+				throw new InterruptedIOException("Interrupted decrypting " + file.getPath());
+			}
+			position = 0;
+			return block != END;
+		}
+	}
+}
@@ -18,9 +18,16 @@ package mft.secure;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.ibm.wmqfte.exitroutine.api.SourceFileExitFileSpecification;
 import com.ibm.wmqfte.exitroutine.api.SourceTransferStartExit;
@@ -49,6 +56,18 @@ import com.ibm.wmqfte.exitroutine.api.TransferExitResultCode;
 	private Properties configurationProperties = null;
 	private boolean encryptAtSource = false;
 	private String publicKeyFile = null;
+	// Number of files encrypted at the same time
+	private int encryptThreads = 1;
+	// Symmetric algorithm, integrity packet and compression used to encrypt files
+	private String cipher = "AES_256";
+	private boolean integrityCheck = true;
+	private String compression = "ZIP";
+	private int compressionLevel = -1;
+	private boolean skipCompressedFiles = true;
+	// JCA provider of the cipher, empty for the BouncyCastle lightweight API
+	private String cipherProvider = "";
+	// Size of the buffer used to copy file data, 0 for the default
+	private int bufferSize = 0;
 	/* (non-Javadoc)
 	 * @see com.ibm.wmqfte.exitroutine.api.SourceTransferStartExit#onSourceTransferStart(java.lang.String, java.lang.String, java.util.Map, java.util.Map, java.util.List)
 	 */
@@ -63,60 +82,130 @@ import com.ibm.wmqfte.exitroutine.api.TransferExitResultCode;
 			// Load properties from configuration file, decenc.properties located in the current directory
 			loadProperties();
 
-			if(enableDebugLog)Trace.logInfo("EncryptAtSource.onSourceTransferStart", "Entry");
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("EncryptAtSource.onSourceTransferStart", "Entry");
 
 			if(encryptAtSource){
-				if(enableDebugLog)Trace.logInfo("EncryptAtSource.onSourceTransferStart","Encrypt at Source = YES");
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("EncryptAtSource.onSourceTransferStart","Encrypt at Source = YES");
 				// We don't need passphrase for encryption
-				CryptDecryptUtil cdu = new CryptDecryptUtil(publicKeyFile, null, enableDebugLog);
+				CryptDecryptUtil cdu = new CryptDecryptUtil(publicKeyFile, null);
+				cdu.setBufferSize(bufferSize);
+				cdu.setCipher(cipher);
+				cdu.setIntegrityCheck(integrityCheck);
+				cdu.setCompression(compression, compressionLevel);
+				cdu.setSkipCompressedFiles(skipCompressedFiles);
+				cdu.setCipherProvider(cipherProvider);
 				encrypt(cdu, sourceFileSpecs);
 			} else {
-				if(enableDebugLog)Trace.logInfo("EncryptAtSource.onSourceTransferStart","Encrypt at Source = NO");
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("EncryptAtSource.onSourceTransferStart","Encrypt at Source = NO");
 			}
 		}catch (Exception ex){
 			// An exception occurred, cancel the transfer. This can be changed based on the requirement.
 			Trace.logException("EncryptAtSource.onSourceTransferStart", ex);
 			result = new TransferExitResult(TransferExitResultCode.CANCEL_TRANSFER, "Encryption failed: " + ex);;
 		} finally {
-			if(enableDebugLog)Trace.logInfo("EncryptAtSource.onSourceTransferStart", "Exit");			
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("EncryptAtSource.onSourceTransferStart", "Exit");			
 		}
 		
 		return result;
 	}
 
 	/**
-	 * Encrypt file before sending
+	 * Encrypt files before sending. Up to encryptThreads files are encrypted at the
+	 * same time. If any file fails, files not yet started are skipped and the first
+	 * failed file in list order is reported, whichever thread finished first.
 	 * @param cdu
 	 * @param sourceFileSpecs
 	 * @throws Exception
 	 */
-	private void encrypt(CryptDecryptUtil cdu, List<SourceFileExitFileSpecification> sourceFileSpecs) throws CryptDecryptException {
-		if(enableDebugLog)Trace.logInfo("EncryptAtSource.encrypt - Entry");
-		// Iterate through the list of files and encrypt them. 
-		for ( SourceFileExitFileSpecification sourceFileSpec : sourceFileSpecs) {
-			final String unencryptedFile = sourceFileSpec.getSource();
-            File sourceFile = new File(unencryptedFile);
-            
-            // Check if the file exists and it is a file and not a directory
-            if(sourceFile.exists() && sourceFile.isFile()) {
-            	// Encrypted file will have an extension of .enc. The unencrypted file is deleted
-            	// after successfull encryption and encrypted file is renamed with original file name.
-            	final String encryptedFileName = unencryptedFile +".enc";
-            	try {
-            		// First encrypt the file
-					cdu.encryptFile(unencryptedFile, encryptedFileName);
-					// delete the source file
-					sourceFile.delete();
-					// rename the encrypted file to source file name 
-	            	File destFile = new File (encryptedFileName);
-					destFile.renameTo(sourceFile);
-				} catch (Exception ex) {
-					Trace.logException ("EncryptAtSource.encrypt", ex);
-		        	throw new CryptDecryptException("Failed to encrypt file" + ex);
+	private void encrypt(final CryptDecryptUtil cdu, List<SourceFileExitFileSpecification> sourceFileSpecs) throws CryptDecryptException {
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("EncryptAtSource.encrypt", "Entry");
+		final long startTime = System.nanoTime();
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final List<String> fileNames = new ArrayList<String>();
+		final List<Future<Void>> results = new ArrayList<Future<Void>>();
+		
+		final int threads = Math.max(1, Math.min(encryptThreads, sourceFileSpecs.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// Iterate through the list of files and encrypt them. 
+			for ( SourceFileExitFileSpecification sourceFileSpec : sourceFileSpecs) {
+				final String unencryptedFile = sourceFileSpec.getSource();
+				fileNames.add(unencryptedFile);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if(!failed.get()) {
+							try {
+								encryptFile(cdu, unencryptedFile);
+							} catch (CryptDecryptException ex) {
+								failed.set(true);
+								throw ex;
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			
+			// Wait for every file, so no encryption is still running when the transfer starts
+			CryptDecryptException failure = null;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException ex) {
+					if(failure == null) {
+						failure = (ex.getCause() instanceof CryptDecryptException) ? (CryptDecryptException) ex.getCause()
+								: new CryptDecryptException("Failed to encrypt file " + fileNames.get(i) + " " + ex.getCause());
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					failed.set(true);
+					if(failure == null) {
+						failure = new CryptDecryptException("Interrupted while encrypting file " + fileNames.get(i));
+					}
 				}
-            }
+			}
+			if(failure != null)
+				throw failure;
+		} finally {
+			executor.shutdown();
+		}
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("EncryptAtSource.encrypt", "Files " + fileNames.size(), "Threads " + threads,
+				"Time " + (System.nanoTime() - startTime) / 1000000 + "ms");
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("EncryptAtSource.encrypt", "Exit");			
+	}
+
+	/**
+	 * Encrypt one file and replace it with the encrypted file
+	 * @param cdu
+	 * @param unencryptedFile - Name of the file
+	 * @throws CryptDecryptException
+	 */
+	private void encryptFile(final CryptDecryptUtil cdu, final String unencryptedFile) throws CryptDecryptException {
+		File sourceFile = new File(unencryptedFile);
+		
+		// Check if the file exists and it is a file and not a directory
+		if(sourceFile.exists() && sourceFile.isFile()) {
+			// Encrypted file will have an extension of .enc. The unencrypted file is deleted
+			// after successfull encryption and encrypted file is renamed with original file name.
+			final String encryptedFileName = unencryptedFile +".enc";
+			final long startTime = System.nanoTime();
+			final long plainSize = sourceFile.length();
+			try {
+				// First encrypt the file
+				cdu.encryptFile(unencryptedFile, encryptedFileName);
+				// delete the source file
+				sourceFile.delete();
+				// rename the encrypted file to source file name 
+				File destFile = new File (encryptedFileName);
+				destFile.renameTo(sourceFile);
+			} catch (Exception ex) {
+				Trace.logException ("EncryptAtSource.encrypt " + unencryptedFile, ex);
+				throw new CryptDecryptException("Failed to encrypt file " + unencryptedFile + " " + ex);
+			}
+			if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("EncryptAtSource.encrypt", unencryptedFile, plainSize,
+					System.nanoTime() - startTime, cdu.getCipherName());
 		}
-		if(enableDebugLog) Trace.logInfo("EncryptAtSource.encrypt", "Exit");			
 	}
 
 	/**
@@ -137,6 +226,7 @@ import com.ibm.wmqfte.exitroutine.api.TransferExitResultCode;
 			if((propDebugLog != null) && (propDebugLog.equalsIgnoreCase("true"))) {
 				enableDebugLog = true;
 			}
+			Trace.configure(configurationProperties, enableDebugLog);
 
 			// Do encryption of file if asked for
 			String propEncryptAtSource= configurationProperties.getProperty("encryptAtSource","false");
@@ -146,6 +236,30 @@ import com.ibm.wmqfte.exitroutine.api.TransferExitResultCode;
 
 			// Name of the file containing the public key
 			publicKeyFile = configurationProperties.getProperty("publicKeyFile", null);
+
+			// Size of the buffer used to copy file data
+			bufferSize = Integer.parseInt(configurationProperties.getProperty("bufferSize", "0").trim());
+
+			// Number of files encrypted at the same time
+			encryptThreads = Integer.parseInt(configurationProperties.getProperty("encryptThreads", "1").trim());
+
+			// Symmetric algorithm used to encrypt files
+			cipher = configurationProperties.getProperty("cipher", "AES_256");
+
+			// Add an integrity packet unless disabled, needed to detect changes to the encrypted file
+			String propIntegrityCheck = configurationProperties.getProperty("integrityCheck", "true");
+			integrityCheck = !propIntegrityCheck.trim().equalsIgnoreCase("false");
+
+			// Compression applied before encrypting
+			compression = configurationProperties.getProperty("compression", "ZIP");
+			compressionLevel = Integer.parseInt(configurationProperties.getProperty("compressionLevel", "-1").trim());
+
+			// Don't compress files that are already compressed
+			String propSkipCompressed = configurationProperties.getProperty("skipCompressedFiles", "true");
+			skipCompressedFiles = !propSkipCompressed.trim().equalsIgnoreCase("false");
+
+			// JCA provider of the cipher, for example SunJCE to use the JDK's AES
+			cipherProvider = configurationProperties.getProperty("cipherProvider", "");
 		}catch(Exception ex) {
 			Trace.logException ("EncryptAtSource.loadProperties", ex);
 			throw new CryptDecryptException("Failed to load properties" + ex);
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitChannel;
+import com.ibm.wmqfte.exitroutine.api.IOExitLock;
+import com.ibm.wmqfte.exitroutine.api.RecoverableIOException;
+
+/**
+ * Reads a local file encrypted. Each read by the agent encrypts the next block of
+ * the file, so the file is encrypted as it is transferred and no encrypted copy of
+ * it is written to disk. Memory use is about two blocks, whatever the size of the file.
+ */
+public class EncryptingReadChannel implements IOExitChannel {
+	private final File file;
+	private final FileChannel plainChannel;
+	private final ByteBuffer plainBuffer;
+	// Encrypted data not yet read by the agent
+	private final PendingOutput encrypted = new PendingOutput();
+	private final OutputStream encryptor;
+	private final String cipherName;
+	private final long startTime = System.nanoTime();
+	private long plainBytes = 0;
+	private long encryptedBytes = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param cdu - Encrypts the file
+	 * @param file - File to read
+	 * @throws IOException
+	 */
+	public EncryptingReadChannel(final CryptDecryptUtil cdu, final File file) throws IOException {
+		this.file = file;
+		this.cipherName = cdu.getCipherName();
+		this.plainChannel = new RandomAccessFile(file, "r").getChannel();
+		this.plainBuffer = ByteBuffer.allocate(cdu.getBufferSize());
+		try {
+			this.encryptor = cdu.openEncryptor(encrypted, file);
+		} catch (IOException ex) {
+			plainChannel.close();
+			throw ex;
+		} catch (Exception ex) {
+			plainChannel.close();
+			throw new IOException("Unable to encrypt " + file.getPath(), ex);
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		// Encrypt more of the file once everything encrypted so far has been read
+		while(encrypted.available() == 0 && !finished) {
+			plainBuffer.clear();
+			int count = plainChannel.read(plainBuffer);
+			if(count < 0) {
+				// Write the final packets
+				encryptor.close();
+				finished = true;
+				if(Trace.isEnabled(Trace.Level.INFO))Trace.logTiming("EncryptingReadChannel.read", file.getPath(), plainBytes, System.nanoTime() - startTime, cipherName);
+			} else if(count > 0) {
+				encryptor.write(plainBuffer.array(), 0, count);
+				plainBytes += count;
+			}
+		}
+
+		if(encrypted.available() == 0)
+			return -1;
+		int count = encrypted.drainTo(buffer);
+		encryptedBytes += count;
+		return count;
+	}
+
+	/**
+	 * The size of the unencrypted file. The size of the encrypted data is not known
+	 * until the whole file has been encrypted, compression makes it smaller and the
+	 * packet headers make it slightly larger, so the agent's progress is an estimate.
+	 */
+	@Override
+	public long size() throws IOException {
+		return plainChannel.size();
+	}
+
+	@Override
+	public void close() throws RecoverableIOException, IOException {
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("EncryptingReadChannel.close", file.getPath(),
+				"Read " + plainBytes + " bytes", "Encrypted " + encryptedBytes + " bytes");
+		try {
+			encryptor.close();
+		} finally {
+			plainChannel.close();
+		}
+	}
+
+	@Override
+	public void force() throws RecoverableIOException, IOException {
+		// Nothing is written
+	}
+
+	@Override
+	public IOExitLock tryLock(boolean shared) throws IOException {
+		FileLock lock = plainChannel.tryLock(0, Long.MAX_VALUE, true);
+		return lock == null ? null : new SecureIOExitLock(lock);
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		throw new IOException(file.getPath() + " is open for read");
+	}
+
+	/**
+	 * Holds the encryptor's output until the agent reads it. It is emptied before
+	 * more of the file is encrypted, so it only grows to about one block.
+	 */
+	private static class PendingOutput extends ByteArrayOutputStream {
+		private int position = 0;
+
+		int available() {
+			return count - position;
+		}
+
+		int drainTo(final ByteBuffer buffer) {
+			int length = Math.min(buffer.remaining(), available());
+			buffer.put(buf, position, length);
+			position += length;
+			if(position == count) {
+				reset();
+				position = 0;
+			}
+			return length;
+		}
+	}
+}
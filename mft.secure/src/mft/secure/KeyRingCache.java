@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package mft.secure;
+
+/**
+ * ==================================================================================
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ * ==================================================================================
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+
+/**
+ * KeyRingCache - Process wide cache of key rings read from key files and of
+ * private keys unlocked with a passphrase. The exits create a new CryptDecryptUtil
+ * for every transfer, so without the cache every transfer would parse the key file
+ * again and every decrypted file would run the passphrase key derivation again.
+ *
+ * Entries are keyed by the absolute path of the key file and are dropped when the
+ * file's modification time or size changes.
+ */
+public class KeyRingCache {
+	private static final Map<String, CachedKeyRing> cache = new ConcurrentHashMap<String, CachedKeyRing>();
+
+	/**
+	 * Key rings read from one key file, and the private keys unlocked from them
+	 */
+	private static class CachedKeyRing {
+		final long lastModified;
+		final long length;
+		final PGPPublicKeyRingCollection publicKeyRings;
+		final PGPSecretKeyRingCollection secretKeyRings;
+		// Unlocked private keys keyed by key id and passphrase digest
+		final Map<String, PGPPrivateKey> privateKeys = new ConcurrentHashMap<String, PGPPrivateKey>();
+
+		CachedKeyRing(final long lastModified, final long length, final PGPPublicKeyRingCollection publicKeyRings,
+				final PGPSecretKeyRingCollection secretKeyRings) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.publicKeyRings = publicKeyRings;
+			this.secretKeyRings = secretKeyRings;
+		}
+
+		boolean isCurrent(final File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+
+	private KeyRingCache() {
+	}
+
+	/**
+	 * Get the public key rings in the given key file
+	 * @param keyFileName - Key file
+	 * @param fingerPrintCalculator - Algorithm used for fingerprint calculation
+	 * @return Public key ring collection
+	 * @throws IOException
+	 * @throws PGPException
+	 */
+	public static PGPPublicKeyRingCollection getPublicKeyRings(final String keyFileName, final KeyFingerPrintCalculator fingerPrintCalculator)
+		throws IOException, PGPException {
+		final File keyFile = new File(keyFileName).getAbsoluteFile();
+		final String cacheKey = "public:" + keyFile.getPath();
+
+		CachedKeyRing entry = cache.get(cacheKey);
+		if(entry == null || !entry.isCurrent(keyFile)) {
+			// Threads that need the same file wait for one of them to read it
+			synchronized (KeyRingCache.class) {
+				entry = cache.get(cacheKey);
+				if(entry == null || !entry.isCurrent(keyFile)) {
+					// Record the file's state before reading it, so a change while reading is seen next time
+					final long lastModified = keyFile.lastModified();
+					final long length = keyFile.length();
+					InputStream in = new FileInputStream(keyFile);
+					try {
+						entry = new CachedKeyRing(lastModified, length,
+								new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(in), fingerPrintCalculator), null);
+					} finally {
+						in.close();
+					}
+					cache.put(cacheKey, entry);
+				}
+			}
+		}
+		return entry.publicKeyRings;
+	}
+
+	/**
+	 * Get the private key with the given key id from the given key file, unlocking it
+	 * with the passphrase if it has not been unlocked already.
+	 * @param keyFileName - Key file
+	 * @param keyID - Id of the key
+	 * @param pass - Passphrase of the key
+	 * @param fingerPrintCalculator - Algorithm used for fingerprint calculation
+	 * @return Private key or null if the key file does not contain the key
+	 * @throws IOException
+	 * @throws PGPException
+	 */
+	public static PGPPrivateKey getPrivateKey(final String keyFileName, final long keyID, final char[] pass,
+			final KeyFingerPrintCalculator fingerPrintCalculator) throws IOException, PGPException {
+		final File keyFile = new File(keyFileName).getAbsoluteFile();
+		final String cacheKey = "secret:" + keyFile.getPath();
+
+		CachedKeyRing entry = cache.get(cacheKey);
+		if(entry == null || !entry.isCurrent(keyFile)) {
+			synchronized (KeyRingCache.class) {
+				entry = cache.get(cacheKey);
+				if(entry == null || !entry.isCurrent(keyFile)) {
+					final long lastModified = keyFile.lastModified();
+					final long length = keyFile.length();
+					InputStream in = new FileInputStream(keyFile);
+					try {
+						entry = new CachedKeyRing(lastModified, length, null,
+								new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(in), fingerPrintCalculator));
+					} finally {
+						in.close();
+					}
+					cache.put(cacheKey, entry);
+				}
+			}
+		}
+
+		PGPSecretKey secretKey = entry.secretKeyRings.getSecretKey(keyID);
+		if(secretKey == null)
+			return null;
+
+		final String privateKeyId = Long.toHexString(keyID) + ":" + digest(pass);
+		PGPPrivateKey privateKey = entry.privateKeys.get(privateKeyId);
+		if(privateKey == null) {
+			// Only one thread runs the key derivation, the others wait for its result
+			synchronized (entry) {
+				privateKey = entry.privateKeys.get(privateKeyId);
+				if(privateKey == null) {
+					PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider()).build(pass);
+					privateKey = secretKey.extractPrivateKey(decryptor);
+					entry.privateKeys.put(privateKeyId, privateKey);
+				}
+			}
+		}
+		return privateKey;
+	}
+
+	/**
+	 * Remove all cached key rings and private keys
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Digest of a passphrase, so that a key unlocked with one passphrase is not
+	 * returned for another and the passphrase itself is not kept.
+	 */
+	private static String digest(final char[] pass) throws PGPException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(pass)));
+			byte[] hash = md.digest();
+			StringBuilder sb = new StringBuilder();
+			for(byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new PGPException("Unable to digest passphrase", ex);
+		}
+	}
+}
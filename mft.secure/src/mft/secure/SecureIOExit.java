@@ -0,0 +1,242 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.ibm.wmqfte.exitroutine.api.IOExit;
+import com.ibm.wmqfte.exitroutine.api.IOExitPath;
+import com.ibm.wmqfte.exitroutine.api.IOExitRecordResourcePath.RecordFormat;
+
+/**
+ *  Encrypt and decrypt files as they are transferred, IBM MQ Managed File Transfer IO Exit.
+ *
+ *  EncryptAtSource and DecryptAtDestination work on whole files before and after the
+ *  transfer: the source file is encrypted to a .enc file that replaces it, and the
+ *  destination file is decrypted to a .dec file that replaces it. Each of them reads
+ *  and writes every file once more than the transfer itself.
+ *
+ *  This exit handles the local files under the configured streamingPaths instead of
+ *  the agent's own file IO. Data the agent reads from a source file is encrypted as it
+ *  is read, and data the agent writes to a destination file is decrypted as it is
+ *  written, so the files are only read and written by the transfer and the source file
+ *  is left unencrypted.
+ *
+ *  The exit is configured with decenc.properties located along side mft.secure.jar:
+ *   streamingPaths=/src/files;/dest/files  Directories handled by the exit, separated by ;
+ *   permitAllUsers=true                   Let every user read and write files in these directories.
+ *                                         The agent's user sandboxes are not applied to them. Default
+ *                                         false, every read and write is denied.
+ *  and the same encryptAtSource, decryptAtDestination, key, cipher and compression
+ *  properties as EncryptAtSource and DecryptAtDestination.
+ *
+ *  Add the following to agent.properties:
+ *   IOExitClasses=mft.secure.SecureIOExit
+ *  Don't configure EncryptAtSource or DecryptAtDestination for the same directories,
+ *  otherwise the files are encrypted or decrypted twice.
+ */
+public class SecureIOExit implements IOExit {
+
+	// Flag to enable/disable logging. The logs are written to agent's output0.log file
+	private boolean enableDebugLog = false;
+	private boolean encryptAtSource = false;
+	private boolean decryptAtDestination = false;
+	private String publicKeyFile = null;
+	private String privateKeyFile = null;
+	private String passphrase = null;
+	// Directories whose files are encrypted and decrypted by this exit
+	private final List<String> streamingPaths = new ArrayList<String>();
+	// Permit every user to read and write files in the streaming paths
+	private boolean permitAllUsers = false;
+	// Size of the buffer used to copy file data, 0 for the default
+	private int bufferSize = 0;
+	// Encryption options, as for EncryptAtSource
+	private String cipher = "AES_256";
+	private boolean integrityCheck = true;
+	private String compression = "ZIP";
+	private int compressionLevel = -1;
+	private boolean skipCompressedFiles = true;
+	private String cipherProvider = "";
+	// Fail to decrypt files that have no integrity packet
+	private boolean requireIntegrityCheck = false;
+
+	// Encrypts files read by the agent, null if encryption is not enabled
+	private CryptDecryptUtil encryptor = null;
+	// Decrypts files written by the agent, null if decryption is not enabled
+	private CryptDecryptUtil decryptor = null;
+
+	/* (non-Javadoc)
+	 * @see com.ibm.wmqfte.exitroutine.api.IOExit#initialize(java.util.Map)
+	 */
+	@Override
+	public boolean initialize(Map<String, String> agentProperties) {
+		try {
+			loadProperties();
+			if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("SecureIOExit.initialize", "Entry");
+
+			if(encryptAtSource) {
+				if(publicKeyFile == null)
+					throw new CryptDecryptException("Public key file property not specified.");
+				encryptor = new CryptDecryptUtil(publicKeyFile, null);
+				encryptor.setBufferSize(bufferSize);
+				encryptor.setCipher(cipher);
+				encryptor.setIntegrityCheck(integrityCheck);
+				encryptor.setCompression(compression, compressionLevel);
+				encryptor.setSkipCompressedFiles(skipCompressedFiles);
+				encryptor.setCipherProvider(cipherProvider);
+			}
+
+			if(decryptAtDestination) {
+				if(privateKeyFile == null)
+					throw new CryptDecryptException("Private key file property not specified.");
+				if(passphrase == null)
+					throw new CryptDecryptException("Passphrase for private key file not specified.");
+				decryptor = new CryptDecryptUtil(privateKeyFile, passphrase);
+				decryptor.setBufferSize(bufferSize);
+				decryptor.setCipherProvider(cipherProvider);
+				decryptor.setRequireIntegrityCheck(requireIntegrityCheck);
+			}
+
+			// The agent's user sandboxes are not applied to files handled by the exit
+			if(permitAllUsers && agentProperties != null
+					&& "true".equalsIgnoreCase(String.valueOf(agentProperties.get("userSandboxes")).trim())) {
+				Trace.log(Trace.Level.ERROR, "SecureIOExit.initialize",
+						"permitAllUsers=true: user sandboxes are not checked for files in %s", streamingPaths);
+			}
+
+			if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("SecureIOExit.initialize", "Streaming paths " + streamingPaths,
+					"Encrypt " + encryptAtSource, "Decrypt " + decryptAtDestination, "Permit all users " + permitAllUsers);
+		} catch (Exception ex) {
+			// The agent does not start if the exit fails to initialize
+			Trace.logException("SecureIOExit.initialize", ex);
+			return false;
+		}
+		if(Trace.isEnabled(Trace.Level.DEBUG))Trace.logDebug("SecureIOExit.initialize", "Exit");
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.wmqfte.exitroutine.api.IOExit#isSupported(java.lang.String)
+	 */
+	@Override
+	public boolean isSupported(String path) {
+		final String filePath = new File(path).getAbsolutePath();
+		for(String streamingPath : streamingPaths) {
+			if(filePath.equals(streamingPath) || filePath.startsWith(streamingPath + File.separator))
+				return true;
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.wmqfte.exitroutine.api.IOExit#newPath(java.lang.String)
+	 */
+	@Override
+	public IOExitPath newPath(String path) throws IOException {
+		return new SecureIOExitPath(new File(path), encryptor, decryptor, permitAllUsers);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.wmqfte.exitroutine.api.IOExit#newPath(java.lang.String, com.ibm.wmqfte.exitroutine.api.IOExitRecordResourcePath.RecordFormat, int)
+	 */
+	@Override
+	public IOExitPath newPath(String path, RecordFormat recordFormat, int recordLength) throws IOException {
+		// Record oriented files are not supported, the path is treated as a normal file
+		return newPath(path);
+	}
+
+	/**
+	 * Load configuration properties from decenc.properties file
+	 * @throws CryptDecryptException
+	 */
+	private void loadProperties() throws CryptDecryptException {
+		try {
+			// Configuration properties
+			Properties configurationProperties = new Properties();
+			File jarPath=new File(SecureIOExit.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+		    String propertiesPath=jarPath.getParentFile().getAbsolutePath();
+		    String configFilePath = propertiesPath +"/decenc.properties";
+			configurationProperties.load(new FileInputStream(configFilePath));
+
+			// Write log to agent's outputN.log file if debug log is enabled
+			String propDebugLog = configurationProperties.getProperty("enableDebugLog", "false");
+			if((propDebugLog != null) && (propDebugLog.equalsIgnoreCase("true"))) {
+				enableDebugLog = true;
+			}
+			Trace.configure(configurationProperties, enableDebugLog);
+
+			// Encrypt files read by the agent
+			String propEncryptAtSource = configurationProperties.getProperty("encryptAtSource", "false");
+			if((propEncryptAtSource != null) && (propEncryptAtSource.equalsIgnoreCase("true"))) {
+				encryptAtSource = true;
+			}
+
+			// Decrypt files written by the agent
+			String propDecryptAtDestination = configurationProperties.getProperty("decryptAtDestination", "false");
+			if((propDecryptAtDestination != null) && (propDecryptAtDestination.equalsIgnoreCase("true"))) {
+				decryptAtDestination = true;
+			}
+
+			// Directories handled by the exit
+			String propStreamingPaths = configurationProperties.getProperty("streamingPaths", "");
+			for(String streamingPath : propStreamingPaths.split(";")) {
+				if(streamingPath.trim().length() > 0)
+					streamingPaths.add(new File(streamingPath.trim()).getAbsolutePath());
+			}
+			String propPermitAllUsers = configurationProperties.getProperty("permitAllUsers", "false");
+			permitAllUsers = propPermitAllUsers.trim().equalsIgnoreCase("true");
+
+			// Names of the files containing the keys
+			publicKeyFile = configurationProperties.getProperty("publicKeyFile", null);
+			privateKeyFile = configurationProperties.getProperty("privateKeyFile", null);
+
+			// Size of the buffer used to copy file data
+			bufferSize = Integer.parseInt(configurationProperties.getProperty("bufferSize", "0").trim());
+
+			// Encryption options
+			cipher = configurationProperties.getProperty("cipher", "AES_256");
+			String propIntegrityCheck = configurationProperties.getProperty("integrityCheck", "true");
+			integrityCheck = !propIntegrityCheck.trim().equalsIgnoreCase("false");
+			compression = configurationProperties.getProperty("compression", "ZIP");
+			compressionLevel = Integer.parseInt(configurationProperties.getProperty("compressionLevel", "-1").trim());
+			String propSkipCompressed = configurationProperties.getProperty("skipCompressedFiles", "true");
+			skipCompressedFiles = !propSkipCompressed.trim().equalsIgnoreCase("false");
+			cipherProvider = configurationProperties.getProperty("cipherProvider", "");
+			String propRequireIntegrity = configurationProperties.getProperty("requireIntegrityCheck", "false");
+			requireIntegrityCheck = propRequireIntegrity.trim().equalsIgnoreCase("true");
+
+			// Get passphrase for private keystore from cryptdecrypt.pwd file located in user's home
+			// directory, as for DecryptAtDestination.
+			if(decryptAtDestination) {
+				final String userHomeDir = System.getProperty("user.home");
+				if(userHomeDir != null && !userHomeDir.trim().equals("")) {
+					Properties passwordProperties = new Properties();
+					passwordProperties.load(new FileInputStream(userHomeDir + "/cryptdecrypt.pwd"));
+					passphrase = passwordProperties.getProperty("passphrase", null);
+				}
+			}
+		}catch(Exception ex) {
+			throw new CryptDecryptException("Failed to load configuration properties. " + ex);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitChannel;
+import com.ibm.wmqfte.exitroutine.api.IOExitLock;
+import com.ibm.wmqfte.exitroutine.api.RecoverableIOException;
+
+/**
+ * Reads or writes a file handled by SecureIOExit unchanged, for the direction
+ * that is neither encrypted nor decrypted.
+ */
+public class SecureIOExitFileChannel implements IOExitChannel {
+	private final FileChannel channel;
+
+	public SecureIOExitFileChannel(final FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Move to the position the agent restarts a transfer from
+	 * @param position - Offset in the file
+	 * @throws IOException
+	 */
+	void position(final long position) throws IOException {
+		channel.position(position);
+	}
+
+	@Override
+	public void close() throws RecoverableIOException, IOException {
+		channel.close();
+	}
+
+	@Override
+	public void force() throws RecoverableIOException, IOException {
+		channel.force(true);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		return channel.read(buffer);
+	}
+
+	@Override
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public IOExitLock tryLock(boolean shared) throws IOException {
+		FileLock lock = channel.tryLock(0, Long.MAX_VALUE, shared);
+		return lock == null ? null : new SecureIOExitLock(lock);
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws RecoverableIOException, IOException {
+		int count = 0;
+		while(buffer.hasRemaining()) {
+			count += channel.write(buffer);
+		}
+		return count;
+	}
+}
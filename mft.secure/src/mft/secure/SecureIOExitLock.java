@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitLock;
+
+/**
+ * Lock on a file handled by SecureIOExit
+ */
+public class SecureIOExitLock implements IOExitLock {
+	private final FileLock lock;
+
+	public SecureIOExitLock(final FileLock lock) {
+		this.lock = lock;
+	}
+
+	@Override
+	public boolean isShared() {
+		return lock.isShared();
+	}
+
+	@Override
+	public boolean isValid() {
+		return lock.isValid();
+	}
+
+	@Override
+	public void release() throws IOException {
+		lock.release();
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package mft.secure;
+/**
+ * Copyright (c) IBM Corporation 2017
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific
+ *  Contributors:
+ *    Shashikanth Rao T - Initial Contribution
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.ibm.wmqfte.exitroutine.api.IOExitChannel;
+import com.ibm.wmqfte.exitroutine.api.IOExitProperties;
+import com.ibm.wmqfte.exitroutine.api.IOExitResourcePath;
+import com.ibm.wmqfte.exitroutine.api.RecoverableIOException;
+
+/**
+ * A local file or directory handled by SecureIOExit. The agent's reads of a file are
+ * encrypted and its writes to a file are decrypted, depending on which of the two the
+ * exit is configured for. Everything else is done on the file as the agent would,
+ * except that the agent's user sandboxes are not checked: the exit replaces the agent's
+ * own file IO, so reads and writes are denied unless the exit permits all users.
+ */
+public class SecureIOExitPath implements IOExitResourcePath {
+	private final File file;
+	private final CryptDecryptUtil encryptor;
+	private final CryptDecryptUtil decryptor;
+	private final boolean permitAllUsers;
+
+	/**
+	 * @param file - Local file or directory
+	 * @param encryptor - Encrypts data read from the file, null to read it unchanged
+	 * @param decryptor - Decrypts data written to the file, null to write it unchanged
+	 * @param permitAllUsers - Permit every user to read and write the file
+	 */
+	public SecureIOExitPath(final File file, final CryptDecryptUtil encryptor, final CryptDecryptUtil decryptor, final boolean permitAllUsers) {
+		this.file = file;
+		this.encryptor = encryptor;
+		this.decryptor = decryptor;
+		this.permitAllUsers = permitAllUsers;
+	}
+
+	private SecureIOExitPath newSecurePath(final File newFile) {
+		return new SecureIOExitPath(newFile, encryptor, decryptor, permitAllUsers);
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public String getParent() {
+		return file.getParent();
+	}
+
+	@Override
+	public String getPath() {
+		return file.getPath();
+	}
+
+	@Override
+	public IOExitResourcePath[] listPaths() {
+		File[] children = file.listFiles();
+		if(children == null)
+			return new IOExitResourcePath[0];
+		IOExitResourcePath[] paths = new IOExitResourcePath[children.length];
+		for(int i = 0; i < children.length; i++) {
+			paths[i] = newSecurePath(children[i]);
+		}
+		return paths;
+	}
+
+	@Override
+	public boolean canRead() throws IOException {
+		return file.canRead();
+	}
+
+	@Override
+	public boolean canWrite() throws IOException {
+		// A file that does not exist yet can be written if its directory can
+		if(file.exists())
+			return file.canWrite();
+		File parent = file.getAbsoluteFile().getParentFile();
+		return parent != null && parent.canWrite();
+	}
+
+	@Override
+	public boolean createNewPath() throws RecoverableIOException, IOException {
+		return file.createNewFile();
+	}
+
+	@Override
+	public IOExitResourcePath createTempPath(String suffix) throws RecoverableIOException, IOException {
+		return newSecurePath(new File(file.getPath() + suffix));
+	}
+
+	@Override
+	public void delete() throws IOException {
+		if(!file.delete() && file.exists())
+			throw new IOException("Unable to delete " + file.getPath());
+	}
+
+	@Override
+	public boolean exists() throws IOException {
+		return file.exists();
+	}
+
+	@Override
+	public String getCanonicalPath() throws IOException {
+		return file.getCanonicalPath();
+	}
+
+	@Override
+	public IOExitProperties getProperties() {
+		return new IOExitProperties();
+	}
+
+	@Override
+	public boolean inUse() {
+		return false;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return file.isAbsolute();
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return file.isDirectory();
+	}
+
+	@Override
+	public boolean isFile() {
+		return file.isFile();
+	}
+
+	@Override
+	public long lastModified() {
+		return file.lastModified();
+	}
+
+	@Override
+	public void makePath() throws IOException {
+		if(!file.mkdirs() && !file.isDirectory())
+			throw new IOException("Unable to create directory " + file.getPath());
+	}
+
+	@Override
+	public IOExitResourcePath newPath(String child) {
+		return newSecurePath(new File(file, child));
+	}
+
+	/**
+	 * Open the file for reading. If encryption is enabled the agent reads the encrypted
+	 * file. An encrypted file can't be read from part way through, because each encryption
+	 * uses a new session key, so the transfer of it can't be resumed.
+	 */
+	@Override
+	public IOExitChannel openForRead(long position) throws RecoverableIOException, IOException {
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("SecureIOExitPath.openForRead", file.getPath(), "Position " + position);
+		if(encryptor == null) {
+			SecureIOExitFileChannel channel = new SecureIOExitFileChannel(new RandomAccessFile(file, "r").getChannel());
+			channel.position(position);
+			return channel;
+		}
+		if(position != 0)
+			throw new IOException("Encrypted file " + file.getPath() + " can only be read from the beginning, not from position " + position);
+		return new EncryptingReadChannel(encryptor, file);
+	}
+
+	/**
+	 * Open the file for writing. If decryption is enabled the data written by the agent
+	 * is decrypted into the file, which can't be appended to.
+	 */
+	@Override
+	public IOExitChannel openForWrite(boolean append) throws RecoverableIOException, IOException {
+		if(Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("SecureIOExitPath.openForWrite", file.getPath(), "Append " + append);
+		if(decryptor == null) {
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			if(append) {
+				out.seek(out.length());
+			} else {
+				out.setLength(0);
+			}
+			return new SecureIOExitFileChannel(out.getChannel());
+		}
+		if(append)
+			throw new IOException("Decrypted file " + file.getPath() + " can't be appended to");
+		return new DecryptingWriteChannel(decryptor, file);
+	}
+
+	@Override
+	public boolean readPermitted(String userId) throws IOException {
+		if(!permitAllUsers && Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("SecureIOExitPath.readPermitted", "Read denied", userId, file.getPath());
+		return permitAllUsers;
+	}
+
+	@Override
+	public void renameTo(IOExitResourcePath newPath) throws IOException {
+		File target = new File(newPath.getPath());
+		try {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public boolean writePermitted(String userId) throws IOException {
+		if(!permitAllUsers && Trace.isEnabled(Trace.Level.INFO))Trace.logInfo("SecureIOExitPath.writePermitted", "Write denied", userId, file.getPath());
+		return permitAllUsers;
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
@@ -19,7 +19,86 @@ package mft.secure;
  * ==================================================================================
  *
  */
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace - Writes the exits' log to the agent's output0.log file through System.out.
+ *
+ * Messages are queued as records and written by a background thread, so the
+ * agent's threads don't wait on System.out, which the agent shares with everything
+ * else it logs. Messages are only formatted by that thread: logInfo params are
+ * joined and log() format strings are applied there, not by the caller. If the
+ * queue is full, INFO and DEBUG records are dropped and counted, ERROR records wait.
+ *
+ * Records are written as text or, with traceFormat=json, as one JSON object per
+ * line. Timings logged with logTiming carry file, bytes, ms, MB/s and cipher fields.
+ *
+ * Configured from decenc.properties by configure():
+ *  traceLevel=INFO     OFF, ERROR, INFO or DEBUG, which adds method entry and exit. Default INFO if
+ *                      enableDebugLog=true, otherwise ERROR. Overrides enableDebugLog
+ *  traceFormat=text    text or json. Default text
+ *  traceAsync=true     Write from a background thread. If false, written by the caller. Default true
+ *  traceQueueSize=8192 Number of records queued for the background thread. Default 8192
+ */
 public class Trace {
+	public enum Level { OFF, ERROR, INFO, DEBUG }
+
+	private static volatile Level level = Level.INFO;
+	private static volatile boolean json = false;
+	private static volatile AsyncAppender appender = null;
+	private static final PrintStream out = System.out;
+
+	/**
+	 * Configure trace from the exit's configuration properties
+	 * @param properties - Contents of decenc.properties
+	 * @param enableDebugLog - The exit's enableDebugLog property, decides the default level
+	 */
+	public static synchronized void configure(final Properties properties, final boolean enableDebugLog) {
+		String propLevel = properties.getProperty("traceLevel", "").trim();
+		if(propLevel.length() > 0) {
+			try {
+				level = Level.valueOf(propLevel.toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				level = enableDebugLog ? Level.INFO : Level.ERROR;
+			}
+		} else {
+			level = enableDebugLog ? Level.INFO : Level.ERROR;
+		}
+
+		json = properties.getProperty("traceFormat", "text").trim().equalsIgnoreCase("json");
+
+		boolean async = !properties.getProperty("traceAsync", "true").trim().equalsIgnoreCase("false");
+		if(async && appender == null) {
+			int queueSize = 8192;
+			try {
+				queueSize = Math.max(64, Integer.parseInt(properties.getProperty("traceQueueSize", "8192").trim()));
+			} catch (NumberFormatException ex) {
+				// Use the default
+			}
+			appender = new AsyncAppender(queueSize);
+		} else if(!async && appender != null) {
+			appender.stop();
+			appender = null;
+		}
+	}
+
+	/**
+	 * @param recordLevel
+	 * @return true if records of the given level are written
+	 */
+	public static boolean isEnabled(final Level recordLevel) {
+		return recordLevel != Level.OFF && recordLevel.ordinal() <= level.ordinal();
+	}
 
 	/**
 	 * Write log
@@ -27,30 +106,334 @@ public class Trace {
 	 * @param params
 	 */
 	public static void logInfo(final String method, String... params){
-		
-		StringBuilder sb = new StringBuilder();
-		
-		sb.append(method);
-		
-		for(String param : params){
-			sb.append("[");
-			sb.append(param);
-			sb.append("]");
-		}
-		System.out.println(sb.toString());			
+		if(isEnabled(Level.INFO))
+			write(new Record(Level.INFO, method, null, params));
 	}
-	
+
+	/**
+	 * Write a DEBUG log, for the entry and exit of methods and other detail
+	 * @param method
+	 * @param params
+	 */
+	public static void logDebug(final String method, String... params){
+		if(isEnabled(Level.DEBUG))
+			write(new Record(Level.DEBUG, method, null, params));
+	}
+
+	/**
+	 * Write a message formatted with String.format. The message is only formatted
+	 * if it is written, by the background thread, so the arguments should not be
+	 * changed after the call.
+	 * @param recordLevel
+	 * @param method
+	 * @param format - Format string
+	 * @param args - Arguments of the format string
+	 */
+	public static void log(final Level recordLevel, final String method, final String format, final Object... args) {
+		if(isEnabled(recordLevel))
+			write(new Record(recordLevel, method, format, args));
+	}
+
+	/**
+	 * Writes the number of bytes processed, the time taken and the throughput
+	 * @param method
+	 * @param bytes - Bytes processed
+	 * @param nanos - Time taken in nanoseconds
+	 */
+	public static void logThroughput(final String method, final long bytes, final long nanos) {
+		logTiming(method, null, bytes, nanos, null);
+	}
+
+	/**
+	 * Writes the time taken to process a file, as file, bytes, ms, MB/s and cipher fields
+	 * @param method
+	 * @param file - Name of the file, or null
+	 * @param bytes - Bytes processed
+	 * @param nanos - Time taken in nanoseconds
+	 * @param cipher - Cipher used, or null
+	 */
+	public static void logTiming(final String method, final String file, final long bytes, final long nanos, final String cipher) {
+		if(isEnabled(Level.INFO))
+			write(new Record(method, file, bytes, nanos, cipher));
+	}
+
 	/**
 	 * Writes an exception log
 	 * @param method
 	 * @param ex
 	 */
 	public static void logException(final String method, final Exception ex) {
-		StringBuilder sb = new StringBuilder();
-		
-		sb.append(method);
-		sb.append(" ");
-		sb.append(ex);
-		System.out.println(sb.toString());
+		if(isEnabled(Level.ERROR))
+			write(new Record(method, ex));
+	}
+
+	/**
+	 * Wait until the records queued so far have been written
+	 * @param timeoutMillis - Longest time to wait
+	 */
+	public static void flush(final long timeoutMillis) {
+		AsyncAppender current = appender;
+		if(current != null)
+			current.flush(timeoutMillis);
+	}
+
+	private static void write(final Record record) {
+		AsyncAppender current = appender;
+		if(current == null || !current.append(record)) {
+			String line = record.format(json);
+			synchronized (out) {
+				out.println(line);
+			}
+		}
+	}
+
+	/**
+	 * A log record, formatted when it is written
+	 */
+	private static final class Record {
+		final long millis = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		final Level level;
+		final String method;
+		// String.format format, or null to join args as [arg][arg]
+		final String format;
+		final Object[] args;
+		// Timing fields
+		final boolean timing;
+		final String file;
+		final long bytes;
+		final long nanos;
+		final String cipher;
+		final Exception exception;
+
+		Record(final Level level, final String method, final String format, final Object[] args) {
+			this.level = level;
+			this.method = method;
+			this.format = format;
+			this.args = args;
+			this.timing = false;
+			this.file = null;
+			this.bytes = 0;
+			this.nanos = 0;
+			this.cipher = null;
+			this.exception = null;
+		}
+
+		Record(final String method, final String file, final long bytes, final long nanos, final String cipher) {
+			this.level = Level.INFO;
+			this.method = method;
+			this.format = null;
+			this.args = null;
+			this.timing = true;
+			this.file = file;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.cipher = cipher;
+			this.exception = null;
+		}
+
+		Record(final String method, final Exception exception) {
+			this.level = Level.ERROR;
+			this.method = method;
+			this.format = null;
+			this.args = null;
+			this.timing = false;
+			this.file = null;
+			this.bytes = 0;
+			this.nanos = 0;
+			this.cipher = null;
+			this.exception = exception;
+		}
+
+		String message() {
+			if(exception != null)
+				return String.valueOf(exception);
+			if(args == null)
+				return "";
+			if(format != null) {
+				try {
+					return String.format(format, args);
+				} catch (RuntimeException ex) {
+					return format;
+				}
+			}
+			StringBuilder sb = new StringBuilder();
+			for(Object arg : args) {
+				sb.append("[").append(arg).append("]");
+			}
+			return sb.toString();
+		}
+
+		String format(final boolean asJson) {
+			final long millisTaken = nanos / 1000000;
+			final double mbPerSecond = (nanos > 0) ? (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0) : 0;
+			StringBuilder sb = new StringBuilder(128);
+			if(asJson) {
+				sb.append("{\"time\":\"").append(Instant.ofEpochMilli(millis)).append('"');
+				sb.append(",\"level\":\"").append(level).append('"');
+				appendJson(sb.append(",\"thread\":"), thread);
+				appendJson(sb.append(",\"method\":"), method);
+				if(!timing)
+					appendJson(sb.append(",\"message\":"), message());
+				if(timing) {
+					if(file != null)
+						appendJson(sb.append(",\"file\":"), file);
+					sb.append(",\"bytes\":").append(bytes);
+					sb.append(",\"ms\":").append(millisTaken);
+					sb.append(",\"mbps\":").append(String.format(Locale.ROOT, "%.2f", mbPerSecond));
+					if(cipher != null)
+						appendJson(sb.append(",\"cipher\":"), cipher);
+				}
+				sb.append('}');
+			} else {
+				sb.append(Instant.ofEpochMilli(millis)).append(' ').append(level).append(" [").append(thread).append("] ");
+				sb.append(method);
+				if(exception != null)
+					sb.append(' ');
+				sb.append(message());
+				if(timing) {
+					if(file != null)
+						sb.append("[").append(file).append("]");
+					sb.append("[Bytes ").append(bytes).append("][Time ").append(millisTaken).append("ms]");
+					sb.append(String.format(Locale.ROOT, "[%.2f MB/s]", mbPerSecond));
+					if(cipher != null)
+						sb.append("[Cipher ").append(cipher).append("]");
+				}
+			}
+			return sb.toString();
+		}
+
+		private static void appendJson(final StringBuilder sb, final String value) {
+			if(value == null) {
+				sb.append("null");
+				return;
+			}
+			sb.append('"');
+			for(int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch(c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if(c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	/**
+	 * Writes queued records from a background thread, a batch at a time, so System.out
+	 * is locked and flushed once per batch rather than once per record.
+	 */
+	private static final class AsyncAppender implements Runnable {
+		private static final int BATCH_SIZE = 256;
+		private final BlockingQueue<Record> queue;
+		private final AtomicLong dropped = new AtomicLong(0);
+		private final AtomicLong queued = new AtomicLong(0);
+		private final AtomicLong written = new AtomicLong(0);
+		private final Thread thread;
+		private volatile boolean running = true;
+
+		AsyncAppender(final int queueSize) {
+			queue = new ArrayBlockingQueue<Record>(queueSize);
+			thread = new Thread(this, "mft.secure.Trace");
+			thread.setDaemon(true);
+			thread.start();
+			// Write what is queued when the agent stops
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flush(2000);
+				}
+			}, "mft.secure.Trace shutdown"));
+		}
+
+		/**
+		 * Queue a record
+		 * @return false if the appender has stopped and the caller should write the record
+		 */
+		boolean append(final Record record) {
+			if(!running)
+				return false;
+			if(queue.offer(record)) {
+				queued.incrementAndGet();
+				return true;
+			}
+			if(record.level != Level.ERROR) {
+				dropped.incrementAndGet();
+				return true;
+			}
+			// Errors are never dropped
+			try {
+				queue.put(record);
+				queued.incrementAndGet();
+				return true;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public void run() {
+			List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+			StringBuilder lines = new StringBuilder(BATCH_SIZE * 128);
+			while(running || !queue.isEmpty()) {
+				try {
+					Record first = queue.poll(500, TimeUnit.MILLISECONDS);
+					if(first == null)
+						continue;
+					batch.add(first);
+					queue.drainTo(batch, BATCH_SIZE - 1);
+
+					final boolean asJson = json;
+					for(Record record : batch) {
+						lines.append(record.format(asJson)).append(System.lineSeparator());
+					}
+					long lost = dropped.getAndSet(0);
+					if(lost > 0)
+						lines.append(new Record(Level.ERROR, "Trace", "%d records dropped, the trace queue was full", new Object[] {lost})
+								.format(asJson)).append(System.lineSeparator());
+					synchronized (out) {
+						out.print(lines);
+						out.flush();
+					}
+				} catch (InterruptedException ex) {
+					// Keep writing until stopped
+				} catch (RuntimeException ex) {
+					// A record that fails to format must not stop the trace
+				} finally {
+					written.addAndGet(batch.size());
+					batch.clear();
+					lines.setLength(0);
+				}
+			}
+		}
+
+		void flush(final long timeoutMillis) {
+			final long target = queued.get();
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+			while(written.get() < target && System.currentTimeMillis() < deadline && thread.isAlive()) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		void stop() {
+			running = false;
+			thread.interrupt();
+			flush(2000);
+		}
 	}
 }